@@ -0,0 +1,110 @@
+package core;
+
+import core.crawler.UinHandler;
+import core.crawler.XmlUinExtractor;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Project: SocialCrawler
+ * Package: core
+ * Created by Stackia <jsq2627@gmail.com> on 12/22/14.
+ * <p/>
+ * Time and memory allocated to extract the UINs of a friend list, with a JDOM document as QQSpaceCrawler used to, and with XmlUinExtractor.
+ */
+public class FriendListBenchmark {
+
+    private static final int[] FRIEND_COUNTS = {100, 1000, 5000};
+
+    private static final int ROUNDS = 5;
+
+    private static long uinSum;
+
+    public static void main(String[] args) throws Exception {
+        for (int friendCount : FRIEND_COUNTS) {
+            byte[] friendList = generateFriendList(friendCount);
+            int iterations = Math.max(10, 2000000 / friendCount);
+            System.out.println(String.format("%d friends, %d bytes:", friendCount, friendList.length));
+            for (String parser : new String[]{"JDOM", "StAX"}) {
+                long bestTime = Long.MAX_VALUE;
+                long allocated = 0;
+                for (int round = 0; round < ROUNDS; ++round) { // Best of several rounds, the first ones warm up the JIT
+                    long startAllocated = getAllocatedBytes();
+                    long startTime = System.nanoTime();
+                    for (int i = 0; i < iterations; ++i) {
+                        if (parser.equals("JDOM")) {
+                            extractWithJdom(friendList);
+                        } else {
+                            extractWithStax(friendList);
+                        }
+                    }
+                    bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+                    allocated = getAllocatedBytes() - startAllocated;
+                }
+                System.out.println(String.format("  %s: %.1f us, %d KB allocated per friend list",
+                        parser, bestTime / 1e3 / iterations, allocated / 1024 / iterations));
+            }
+        }
+        System.out.println("(UIN checksum " + uinSum + ")");
+    }
+
+    private static void extractWithJdom(byte[] friendList) throws Exception {
+        Document document = new SAXBuilder().build(new ByteArrayInputStream(friendList));
+        List<Element> groups = document.getRootElement().getChildren("group");
+        for (Element group : groups) {
+            List<Element> friends = group.getChildren("friend");
+            for (Element friend : friends) {
+                uinSum += Long.parseLong(friend.getAttributeValue("uin"));
+            }
+        }
+    }
+
+    private static void extractWithStax(byte[] friendList) throws Exception {
+        XmlUinExtractor.FRIEND_LIST.extract(new ByteArrayInputStream(friendList), new UinHandler() {
+            @Override
+            public void onUin(long uin) {
+                uinSum += uin;
+            }
+        });
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, or 0 if the JVM can't tell.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Generate a friend list shaped like what qqshow_user_friendgroup returns.
+     *
+     * @param friendCount Number of friends.
+     * @return The friend list, UTF-8 encoded.
+     */
+    private static byte[] generateFriendList(int friendCount) {
+        Random random = new Random(42);
+        StringBuilder friendList = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<data>\n");
+        int groupCount = 1 + friendCount / 200;
+        for (int group = 0; group < groupCount; ++group) {
+            friendList.append("<group id=\"").append(group).append("\" name=\"\u6211\u7684\u597d\u53cb").append(group).append("\">\n");
+            for (int i = group; i < friendCount; i += groupCount) {
+                friendList.append("<friend uin=\"").append(10000 + random.nextInt(Integer.MAX_VALUE - 10000))
+                        .append("\" name=\"\u597d\u53cb").append(i).append("\" remark=\"\" />\n");
+            }
+            friendList.append("</group>\n");
+        }
+        return friendList.append("</data>\n").toString().getBytes(Charset.forName("UTF-8"));
+    }
+}
@@ -0,0 +1,105 @@
+package core;
+
+import core.crawler.JsonUinExtractor;
+import core.crawler.UinHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Project: SocialCrawler
+ * Package: core
+ * Created by Stackia <jsq2627@gmail.com> on 12/26/14.
+ * <p/>
+ * Checks JsonUinExtractor against responses shaped like what QZone returns: plain and JSONP-wrapped, strict and lenient, and broken ones.
+ * <p/>
+ * Throws on the first failed check.
+ */
+public class JsonUinExtractorCheck {
+
+    public static void main(String[] args) throws Exception {
+        String comments = "{\"code\":0,\"data\":{\"total\":3,\"commentList\":["
+                + "{\"id\":1,\"uin\":10001,\"nickname\":\"\u54c8\u54c8\",\"replyList\":[{\"uin\":99999}]},"
+                + "{\"id\":2,\"uin\":\"10002\",\"htmlContent\":\"{\\\"uin\\\":99998}\"},"
+                + "{\"id\":3,\"uin\":4294967295}"
+                + "]},\"uin\":99997}";
+        List<Long> expected = Arrays.asList(10001L, 10002L, 4294967295L);
+
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, comments, expected, "plain JSON");
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, "_Callback(" + comments + ");", expected, "JSONP");
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, "\ufeff \r\n_Callback(\n" + comments + "\n);\n", expected, "JSONP after a BOM and blank lines");
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, "try{_preloadCallback(" + comments + ")}catch(e){}", expected, "JSONP in a try block");
+        System.out.println("JSONP wrappers: OK");
+
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, "{data:{commentList:[{uin:10001,nickname:'\u54c8\u54c8'},{'uin':'10002'}]}}", Arrays.asList(10001L, 10002L), "unquoted and single-quoted names");
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, "{\"data\":{\"commentList\":[null,1,\"x\",[{\"uin\":99999}],{\"uin\":10001}]}}", Arrays.asList(10001L), "elements which aren't objects");
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, "{\"data\":{\"commentList\":[{\"uin\":\"\"},{\"uin\":null},{\"uin\":true},{\"uin\":\"abc\"},{\"uin\":10001}]}}", Arrays.asList(10001L), "UINs which aren't numbers");
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, "{\"data\":{\"commentList\":[{\"uin\":10001}]}} trailing garbage", Arrays.asList(10001L), "garbage after the value");
+        System.out.println("Lenient JSON: OK");
+
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, "_Callback({\"code\":-3000,\"message\":\"\u8bf7\u5148\u767b\u5f55\"});", new ArrayList<Long>(), "error response");
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, "{\"data\":{\"commentList\":{\"uin\":10001}}}", new ArrayList<Long>(), "object instead of an array");
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, "{\"data\":[{\"commentList\":[{\"uin\":10001}]}]}", new ArrayList<Long>(), "array instead of an object on the path");
+        checkUins(JsonUinExtractor.MESSAGE_BOARD, "[{\"uin\":10001}]", new ArrayList<Long>(), "array at the root");
+        checkUins(JsonUinExtractor.RECENT_VISITORS, comments, new ArrayList<Long>(), "other path");
+        checkUins(JsonUinExtractor.RECENT_VISITORS, "_Callback({\"data\":{\"items\":[{\"uin\":10003,\"time\":1419000000}]}})", Arrays.asList(10003L), "recent visitors");
+        System.out.println("Missing paths: OK");
+
+        List<Long> uins = new ArrayList<Long>();
+        try {
+            extract(JsonUinExtractor.MESSAGE_BOARD, "_Callback({\"data\":{\"commentList\":[{\"uin\":10001},{\"uin\":10002},{\"ui", uins);
+            check(false, "truncated response throws");
+        } catch (IOException expectedException) {
+            check(uins.equals(Arrays.asList(10001L, 10002L)), "UINs before the truncation handled, got " + uins);
+        }
+        uins.clear();
+        for (String response : new String[]{"", "  \r\n", "<html>502 Bad Gateway</html>"}) {
+            try {
+                extract(JsonUinExtractor.MESSAGE_BOARD, response, uins);
+                check(false, "response without JSON throws: " + response);
+            } catch (IOException expectedException) {
+                check(uins.isEmpty(), "no UIN from a response without JSON");
+            }
+        }
+        System.out.println("Truncated and empty responses: OK");
+
+        for (String charsetName : new String[]{"UTF-8", "GBK"}) {
+            Charset charset = Charset.forName(charsetName);
+            JsonUinExtractor.MESSAGE_BOARD.extract(new ByteArrayInputStream(("_Callback(" + comments + ");").getBytes(charset)), charset, collect(uins));
+            check(uins.equals(expected), charsetName + " stream, got " + uins);
+            uins.clear();
+        }
+        System.out.println("Streams: OK");
+    }
+
+    private static void checkUins(JsonUinExtractor extractor, String response, List<Long> expected, String description) throws IOException {
+        List<Long> uins = new ArrayList<Long>();
+        int count = extract(extractor, response, uins);
+        check(uins.equals(expected), description + ": expected " + expected + ", got " + uins);
+        check(count == expected.size(), description + ": count " + count);
+    }
+
+    private static int extract(JsonUinExtractor extractor, String response, List<Long> uins) throws IOException {
+        return extractor.extract(new StringReader(response), collect(uins));
+    }
+
+    private static UinHandler collect(final List<Long> uins) {
+        return new UinHandler() {
+            @Override
+            public void onUin(long uin) {
+                uins.add(uin);
+            }
+        };
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + message);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package core;
+
+import core.model.QQUserRaw;
+import core.storage.QQUserRawLogStorage;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Project: SocialCrawler
+ * Package: core
+ * Created by Stackia <jsq2627@gmail.com> on 12/26/14.
+ * <p/>
+ * Checks that QQUserRawLogStorage recovers from torn and corrupted segment tails, and that compaction keeps live records and tombstones across a reopen.
+ * <p/>
+ * Runs in a temporary directory and throws on the first failed check. Compaction needs a sealed segment, so about 150 MB are written.
+ */
+public class LogStorageCheck {
+
+    /**
+     * Incompressible payloads this large fill a segment with a few users.
+     */
+    private static final int LARGE_PAYLOAD_SIZE = 4 << 20;
+
+    private static final Random random = new Random(42);
+
+    public static void main(String[] args) throws Exception {
+        File directory = Files.createTempDirectory("log-storage-check").toFile();
+        try {
+            checkCorruptedTail(new File(directory, "corrupted"));
+            System.out.println("Corrupted tail: OK");
+            checkTornTail(new File(directory, "torn"));
+            System.out.println("Torn tail: OK");
+            checkCompaction(new File(directory, "compaction"));
+            System.out.println("Compaction: OK");
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * A record with a bad checksum at the end of a segment is cut off, and the previous version of its payload wins.
+     */
+    private static void checkCorruptedTail(File directory) throws IOException {
+        QQUserRawLogStorage storage = new QQUserRawLogStorage(directory);
+        QQUserRaw user = new QQUserRaw(10001);
+        user.setFriends("<data>first</data>");
+        check(storage.insert(user), "insert");
+        user.setFriends("<data>second</data>");
+        check(storage.update(user), "update");
+        storage.close();
+
+        File segment = lastSegment(directory);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            long length = file.length();
+            file.seek(length - 1);
+            int last = file.read();
+            file.seek(length - 1);
+            file.write(last ^ 0xFF);
+        } finally {
+            file.close();
+        }
+
+        storage = new QQUserRawLogStorage(directory);
+        try {
+            check(storage.size() == 1, "1 user after recovery, got " + storage.size());
+            QQUserRaw recovered = storage.find(0);
+            check(recovered != null && recovered.getUin() == 10001, "user 10001 at offset 0");
+            check("<data>first</data>".equals(recovered.getFriends()), "previous friends payload, got " + recovered.getFriends());
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * Half a record at the end of a segment is cut off without losing the records before it, and appending goes on from there.
+     */
+    private static void checkTornTail(File directory) throws IOException {
+        QQUserRawLogStorage storage = new QQUserRawLogStorage(directory);
+        for (long uin = 20001; uin <= 20003; ++uin) {
+            QQUserRaw user = new QQUserRaw(uin);
+            user.setMessageBoard("_Callback({\"uin\":" + uin + "});");
+            check(storage.insert(user), "insert " + uin);
+        }
+        storage.close();
+
+        File segment = lastSegment(directory);
+        long intactLength = segment.length();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(intactLength);
+            file.writeInt(1000); // Header of a body which never made it to disk
+            file.writeInt(0);
+            file.write(new byte[100]);
+        } finally {
+            file.close();
+        }
+
+        storage = new QQUserRawLogStorage(directory);
+        try {
+            check(segment.length() == intactLength, "torn record cut off, " + segment.length() + " bytes left of " + intactLength);
+            check(storage.size() == 3, "3 users after recovery, got " + storage.size());
+            for (int offset = 0; offset < 3; ++offset) {
+                QQUserRaw user = storage.find(offset);
+                check(user != null && user.getUin() == 20001 + offset, "user at offset " + offset);
+                check(("_Callback({\"uin\":" + user.getUin() + "});").equals(user.getMessageBoard()), "message board of " + user.getUin());
+            }
+            check(storage.insertIfNotExisted(20004), "insert after recovery");
+        } finally {
+            storage.close();
+        }
+
+        storage = new QQUserRawLogStorage(directory);
+        try {
+            check(storage.size() == 4, "4 users after reopening, got " + storage.size());
+            check(storage.find(3) != null && storage.find(3).getUin() == 20004, "user inserted after recovery at offset 3");
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * Compacting a segment copies its live records and the tombstone of a user inserted in an older segment, so the user stays deleted after a reopen.
+     */
+    private static void checkCompaction(File directory) throws IOException {
+        QQUserRawLogStorage storage = new QQUserRawLogStorage(directory);
+        long deletedUin = 30000;
+        check(storage.insertIfNotExisted(deletedUin), "insert " + deletedUin);
+        long uin = 30001;
+        while (storage.getSegmentCount() < 2) { // Live users fill the first segment, which is thus never compacted
+            QQUserRaw user = new QQUserRaw(uin++);
+            user.setPayloadBytes(QQUserRaw.FRIENDS, randomBytes(LARGE_PAYLOAD_SIZE));
+            check(storage.insert(user), "insert " + user.getUin());
+        }
+        long liveUserCount = uin - 30001;
+
+        // The second segment gets the tombstone, a small live user, and mostly superseded payloads
+        check(storage.delete(deletedUin), "delete " + deletedUin);
+        QQUserRaw smallUser = new QQUserRaw(40000);
+        smallUser.setPersonalInfo("_Callback({\"nickname\":\"small\"});");
+        check(storage.insert(smallUser), "insert 40000");
+        QQUserRaw rewrittenUser = new QQUserRaw(50000);
+        check(storage.insert(rewrittenUser), "insert 50000");
+        byte[] lastPayload = null;
+        while (storage.getSegmentCount() < 3) {
+            lastPayload = randomBytes(LARGE_PAYLOAD_SIZE);
+            rewrittenUser.setPayloadBytes(QQUserRaw.FRIENDS, lastPayload);
+            check(storage.update(rewrittenUser), "update 50000");
+        }
+
+        storage.compact();
+        check(storage.getSegmentCount() == 2, "second segment compacted away, " + storage.getSegmentCount() + " segments left");
+        check(!storage.exists(deletedUin), "deleted user absent after compaction");
+        storage.close();
+
+        storage = new QQUserRawLogStorage(directory);
+        try {
+            check(!storage.exists(deletedUin), "deleted user absent after reopening");
+            check(storage.size() == liveUserCount + 2, (liveUserCount + 2) + " users after reopening, got " + storage.size());
+            QQUserRaw user = storage.find(liveUserCount + 1);
+            check(user != null && user.getUin() == 40000, "user 40000 keeps its order");
+            check("_Callback({\"nickname\":\"small\"});".equals(user.getPersonalInfo()), "personal info of 40000 copied");
+            user = storage.find(liveUserCount + 2);
+            check(user != null && user.getUin() == 50000, "user 50000 keeps its order");
+            check(Arrays.equals(lastPayload, user.getPayloadBytes(QQUserRaw.FRIENDS)), "latest friends payload of 50000");
+            check(storage.find(0) == null, "offset of the deleted user stays empty");
+            check(storage.find(1) != null && storage.find(1).getPayloadBytes(QQUserRaw.FRIENDS).length == LARGE_PAYLOAD_SIZE, "users of the first segment intact");
+        } finally {
+            storage.close();
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static File lastSegment(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".seg");
+            }
+        });
+        check(files != null && files.length > 0, "segment files in " + directory);
+        Arrays.sort(files);
+        return files[files.length - 1];
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete()) {
+            System.out.println("Failed to delete " + file);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + message);
+        }
+    }
+}
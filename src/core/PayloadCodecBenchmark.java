@@ -0,0 +1,132 @@
+package core;
+
+import core.storage.PayloadCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Project: SocialCrawler
+ * Package: core
+ * Created by Stackia <jsq2627@gmail.com> on 12/20/14.
+ * <p/>
+ * Compression ratio and speed of PayloadCodec by deflate level.
+ * <p/>
+ * Arguments are payload files, or directories of them, e.g. responses saved from QZone. Without arguments, payloads shaped like QZone responses are generated.
+ */
+public class PayloadCodecBenchmark {
+
+    private static final int[] LEVELS = {1, 6, 9};
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        List<String> payloads = new ArrayList<String>();
+        for (String arg : args) {
+            readPayloads(new File(arg), payloads);
+        }
+        if (payloads.isEmpty()) {
+            generatePayloads(payloads);
+        }
+        long totalBytes = 0;
+        for (String payload : payloads) {
+            totalBytes += payload.getBytes(Charset.forName("UTF-8")).length;
+        }
+        System.out.println(String.format("%d payloads, %d bytes", payloads.size(), totalBytes));
+
+        for (int level : LEVELS) {
+            List<byte[]> encoded = new ArrayList<byte[]>(payloads.size());
+            long encodedBytes = 0;
+            long encodeTime = Long.MAX_VALUE;
+            long decodeTime = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; ++round) { // Best of several rounds, the first ones warm up the JIT
+                encoded.clear();
+                encodedBytes = 0;
+                long startTime = System.nanoTime();
+                for (String payload : payloads) {
+                    byte[] data = PayloadCodec.encode(payload, level);
+                    encoded.add(data);
+                    encodedBytes += data.length;
+                }
+                encodeTime = Math.min(encodeTime, System.nanoTime() - startTime);
+                startTime = System.nanoTime();
+                for (int i = 0; i < encoded.size(); ++i) {
+                    if (!PayloadCodec.decode(encoded.get(i)).equals(payloads.get(i))) {
+                        throw new IllegalStateException("Payload " + i + " doesn't round-trip");
+                    }
+                }
+                decodeTime = Math.min(decodeTime, System.nanoTime() - startTime);
+            }
+            System.out.println(String.format("Level %d: %d bytes, ratio %.2f, compress %.1f MB/s, decompress %.1f MB/s",
+                    level, encodedBytes, (double) totalBytes / encodedBytes,
+                    totalBytes / (encodeTime / 1e9) / 1e6, totalBytes / (decodeTime / 1e9) / 1e6));
+        }
+    }
+
+    private static void readPayloads(File file, List<String> payloads) throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    readPayloads(child, payloads);
+                }
+            }
+        } else {
+            payloads.add(new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8")));
+        }
+    }
+
+    /**
+     * Generate payloads in the shape of what QQSpaceCrawler stores: JSONP personal info and message boards, and XML friend lists.
+     *
+     * @param payloads List to add payloads to.
+     */
+    private static void generatePayloads(List<String> payloads) {
+        Random random = new Random(42);
+        String[] words = {"\u54c8\u54c8", "\u751f\u65e5\u5feb\u4e50", "\u597d\u4e45\u4e0d\u89c1", "\u8e29\u8e29", "\u6765\u770b\u770b\u4f60", "\u65b0\u5e74\u5feb\u4e50", "\u665a\u5b89", "\u52a0\u6cb9", "\u60f3\u4f60\u4e86", "[em]e100[/em]"};
+        for (int n = 0; n < 1000; ++n) {
+            StringBuilder personalInfo = new StringBuilder("_Callback({\"code\":0,\"subcode\":0,\"message\":\"\",\"data\":{");
+            personalInfo.append("\"uin\":").append(10000 + random.nextInt(Integer.MAX_VALUE - 10000))
+                    .append(",\"nickname\":\"").append(words[random.nextInt(words.length)])
+                    .append("\",\"sex\":").append(random.nextInt(3))
+                    .append(",\"age\":").append(15 + random.nextInt(30))
+                    .append(",\"birthyear\":").append(1970 + random.nextInt(30))
+                    .append(",\"country\":\"\u4e2d\u56fd\",\"province\":\"\u6e56\u5317\",\"city\":\"\u6b66\u6c49\",\"signature\":\"")
+                    .append(words[random.nextInt(words.length)]).append("\"}});");
+            payloads.add(personalInfo.toString());
+
+            StringBuilder messageBoard = new StringBuilder("_Callback({\"code\":0,\"data\":{\"total\":100,\"commentList\":[");
+            for (int i = 0; i < 20; ++i) {
+                if (i > 0) {
+                    messageBoard.append(',');
+                }
+                messageBoard.append("{\"id\":").append(random.nextInt(10000))
+                        .append(",\"uin\":").append(10000 + random.nextInt(Integer.MAX_VALUE - 10000))
+                        .append(",\"nickname\":\"").append(words[random.nextInt(words.length)])
+                        .append("\",\"pubtime\":\"2014-").append(1 + random.nextInt(12)).append('-').append(1 + random.nextInt(28))
+                        .append("\",\"htmlContent\":\"");
+                for (int j = random.nextInt(8); j >= 0; --j) {
+                    messageBoard.append(words[random.nextInt(words.length)]);
+                }
+                messageBoard.append("\",\"replyList\":[]}");
+            }
+            payloads.add(messageBoard.append("]}});").toString());
+
+            StringBuilder friends = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<data>\n");
+            for (int group = 0; group < 5; ++group) {
+                friends.append("<group id=\"").append(group).append("\" name=\"\u6211\u7684\u597d\u53cb").append(group).append("\">\n");
+                for (int i = group; i < 100; i += 5) {
+                    friends.append("<friend uin=\"").append(10000 + random.nextInt(Integer.MAX_VALUE - 10000))
+                            .append("\" name=\"").append(words[random.nextInt(words.length)]).append("\" remark=\"\" />\n");
+                }
+                friends.append("</group>\n");
+            }
+            payloads.add(friends.append("</data>\n").toString());
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package core;
+
+import core.storage.UinFrontier;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Project: SocialCrawler
+ * Package: core
+ * Created by Stackia <jsq2627@gmail.com> on 12/26/14.
+ * <p/>
+ * Checks that UinFrontier keeps priority and offer order across its in-memory heads and spilled segment files, keeps UINs above 2^31 intact, and that a segment which can't be read back leaves its UINs to the user storage.
+ * <p/>
+ * Runs in a temporary directory and throws on the first failed check.
+ */
+public class UinFrontierCheck {
+
+    /**
+     * UINs in a segment file of UinFrontier.
+     */
+    private static final int SEGMENT_CAPACITY = 1 << 20;
+
+    private static final int HEAD_CAPACITY = 1000;
+
+    /**
+     * Above Integer.MAX_VALUE, so that UINs are only right if they are read back as unsigned.
+     */
+    private static final long HIGH_UIN = 3000000000L;
+
+    public static void main(String[] args) throws Exception {
+        File directory = Files.createTempDirectory("frontier-check").toFile();
+        try {
+            checkOrder(directory);
+            System.out.println("Spill and refill: OK");
+            checkLostSegment(directory);
+            System.out.println("Lost segment: OK");
+            checkReopen(directory);
+            System.out.println("Reopen: OK");
+        } finally {
+            for (File file : segmentFiles(directory)) {
+                file.delete();
+            }
+            if (!directory.delete()) {
+                System.out.println("Failed to delete " + directory);
+            }
+        }
+    }
+
+    /**
+     * UINs come out by priority class, and in offer order within a class, whether they were kept in the head or spilled.
+     */
+    private static void checkOrder(File directory) throws IOException {
+        UinFrontier frontier = new UinFrontier(directory, 3, HEAD_CAPACITY);
+        check(!frontier.offer(-1, 0) && !frontier.offer(1L << 32, 0), "UINs beyond 32 bits refused");
+        check(frontier.poll() == -1, "empty frontier");
+
+        int spilledClassCount = 2 * SEGMENT_CAPACITY + 5000;
+        for (int i = 0; i < spilledClassCount; ++i) {
+            check(frontier.offer(HIGH_UIN + i, 1), "offer to class 1");
+        }
+        for (int i = 0; i < 10; ++i) {
+            check(frontier.offer(10000 + i, 0), "offer to class 0");
+        }
+        check(frontier.offer(20000, 99), "offer beyond the lowest class");
+        check(frontier.size() == spilledClassCount + 11, "size " + frontier.size());
+        check(frontier.size(1) == spilledClassCount, "size of class 1 " + frontier.size(1));
+        check(frontier.size(2) == 1, "priority beyond the lowest class goes to it");
+        check(frontier.getSpilledCount() == spilledClassCount - HEAD_CAPACITY, "spilled " + frontier.getSpilledCount());
+        check(frontier.getSegmentCount() == 3, "segments " + frontier.getSegmentCount());
+        check(segmentFiles(directory).length == 3, "segment files " + segmentFiles(directory).length);
+
+        for (int i = 0; i < 10; ++i) {
+            check(frontier.poll() == 10000 + i, "class 0 first, in order");
+        }
+        int lateCount = 0;
+        for (int i = 0; i < spilledClassCount; ++i) {
+            long uin = frontier.poll();
+            check(uin == HIGH_UIN + i, "class 1 in offer order at " + i + ", got " + uin);
+            check(frontier.hasOffered(uin), "taken UIN still reported as offered");
+            if (i == SEGMENT_CAPACITY) { // Offered while class 1 is read back from its segments
+                check(frontier.offer(10100, 0), "offer to class 0 while draining");
+                check(frontier.poll() == 10100, "class 0 taken before the rest of class 1");
+                for (int j = 0; j < 100; ++j) {
+                    check(frontier.offer(HIGH_UIN + spilledClassCount + j, 1), "offer to class 1 while draining");
+                }
+                lateCount = 100;
+            }
+        }
+        for (int i = 0; i < lateCount; ++i) {
+            check(frontier.poll() == HIGH_UIN + spilledClassCount + i, "UINs offered while draining come last in their class");
+        }
+        check(frontier.poll() == 20000, "class 2 last");
+        check(frontier.poll() == -1 && frontier.size() == 0, "empty after draining");
+        check(frontier.getSegmentCount() == 0 && segmentFiles(directory).length == 0, "segment files deleted once read through");
+        check(!frontier.hasOffered(12345), "UIN never offered");
+        frontier.close();
+    }
+
+    /**
+     * UINs of a segment file which can't be read are dropped, and no UIN is reported as offered any more, so that the user storage walk crawls them.
+     */
+    private static void checkLostSegment(File directory) throws IOException {
+        UinFrontier frontier = new UinFrontier(directory, 1, 10);
+        int count = 10 + 2 * SEGMENT_CAPACITY + 100;
+        for (int i = 0; i < count; ++i) {
+            check(frontier.offer(HIGH_UIN + i, 0), "offer");
+        }
+        File[] files = segmentFiles(directory);
+        check(files.length == 3, "segment files " + files.length);
+        File lostFile = files[1]; // Not mapped any more, so it is opened again when read
+        check(lostFile.delete() && lostFile.mkdir(), "replace " + lostFile + " with a directory");
+
+        System.out.println("A failure to read " + lostFile.getName() + " is expected:");
+        long polledCount = 0;
+        long expected = HIGH_UIN;
+        long uin;
+        while ((uin = frontier.poll()) != -1) {
+            if (uin != expected) {
+                check(expected == HIGH_UIN + 10 + SEGMENT_CAPACITY && uin == expected + SEGMENT_CAPACITY, "only the lost segment skipped, got " + uin + " for " + expected);
+                expected = uin;
+            }
+            ++expected;
+            ++polledCount;
+        }
+        check(polledCount == count - SEGMENT_CAPACITY, "polled " + polledCount);
+        check(frontier.size() == 0, "size " + frontier.size());
+        check(!frontier.hasOffered(HIGH_UIN) && !frontier.hasOffered(HIGH_UIN + 10 + SEGMENT_CAPACITY), "offered UINs forgotten after a lost segment");
+        frontier.close();
+    }
+
+    /**
+     * Closing deletes the segment files and forgets every UIN, and files left by a previous run are deleted when opened.
+     */
+    private static void checkReopen(File directory) throws IOException {
+        UinFrontier frontier = new UinFrontier(directory, 1, 10);
+        for (int i = 0; i < 100; ++i) {
+            frontier.offer(HIGH_UIN + i, 0);
+        }
+        check(segmentFiles(directory).length == 1, "spilled to a segment file");
+        frontier.close();
+        check(segmentFiles(directory).length == 0, "segment files deleted on close");
+        check(frontier.size() == 0 && frontier.poll() == -1 && !frontier.hasOffered(HIGH_UIN), "empty after close");
+
+        check(new File(directory, "0-00000099.frontier").createNewFile(), "leave a segment file behind");
+        frontier = new UinFrontier(directory, 1, 10);
+        check(segmentFiles(directory).length == 0, "stale segment file deleted on open");
+        check(frontier.poll() == -1, "stale segment file not read");
+        frontier.close();
+    }
+
+    private static File[] segmentFiles(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".frontier");
+            }
+        });
+        check(files != null, "list " + directory);
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + message);
+        }
+    }
+}
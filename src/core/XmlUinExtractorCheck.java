@@ -0,0 +1,124 @@
+package core;
+
+import core.crawler.UinHandler;
+import core.crawler.XmlUinExtractor;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Project: SocialCrawler
+ * Package: core
+ * Created by Stackia <jsq2627@gmail.com> on 12/26/14.
+ * <p/>
+ * Checks XmlUinExtractor against friend lists shaped like what qqshow_user_friendgroup returns, broken ones, and ones trying to make the parser resolve entities.
+ * <p/>
+ * Throws on the first failed check.
+ */
+public class XmlUinExtractorCheck {
+
+    /**
+     * UIN only reachable by resolving an entity. Handling it means the parser read a DTD or an external file.
+     */
+    private static final long ENTITY_UIN = 77777;
+
+    public static void main(String[] args) throws Exception {
+        String friendList = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<data>\n"
+                + "<group id=\"0\" name=\"\u6211\u7684\u597d\u53cb\">\n"
+                + "<friend uin=\"10001\" name=\"\u597d\u53cb\" remark=\"\" />\n"
+                + "<friend uin=\" 10002 \" name=\"a &amp; b\"><friend uin=\"99999\" /></friend>\n"
+                + "</group>\n"
+                + "<group id=\"1\" name=\"\"><friend uin=\"4294967295\" /><friend name=\"no uin\" /><friend uin=\"abc\" /><friend uin=\"\" /></group>\n"
+                + "<friend uin=\"99998\" />\n"
+                + "<other><group><friend uin=\"99997\" /></group></other>\n"
+                + "</data>\n";
+        List<Long> expected = Arrays.asList(10001L, 10002L, 4294967295L);
+
+        checkUins(friendList, expected, "friend list");
+        checkUins("<data><group></group><group/></data>", new ArrayList<Long>(), "groups without friends");
+        checkUins("<group><friend uin=\"99999\" /></group>", new ArrayList<Long>(), "group as the root element");
+        System.out.println("Friend lists: OK");
+
+        List<Long> uins = new ArrayList<Long>();
+        for (String charsetName : new String[]{"UTF-8", "GBK"}) {
+            String encoded = friendList.replace("encoding=\"utf-8\"", "encoding=\"" + charsetName + "\"");
+            XmlUinExtractor.FRIEND_LIST.extract(new ByteArrayInputStream(encoded.getBytes(Charset.forName(charsetName))), collect(uins));
+            check(uins.equals(expected), charsetName + " stream, got " + uins);
+            uins.clear();
+        }
+        System.out.println("Streams: OK");
+
+        try {
+            XmlUinExtractor.FRIEND_LIST.extract(new StringReader("<data><group><friend uin=\"10001\" /><friend uin=\"10002\" /></group><gro"), collect(uins));
+            check(false, "truncated friend list throws");
+        } catch (XMLStreamException expectedException) {
+            check(uins.equals(Arrays.asList(10001L, 10002L)), "UINs before the truncation handled, got " + uins);
+        }
+        System.out.println("Truncated friend list: OK");
+
+        File directory = Files.createTempDirectory("xml-extractor-check").toFile();
+        File entityFile = new File(directory, "uin.txt");
+        File dtdFile = new File(directory, "friends.dtd");
+        try {
+            Files.write(entityFile.toPath(), String.valueOf(ENTITY_UIN).getBytes("UTF-8"));
+            Files.write(dtdFile.toPath(), ("<!ENTITY uin \"" + ENTITY_UIN + "\">").getBytes("UTF-8"));
+            checkNoEntityResolved("<!DOCTYPE data [<!ENTITY uin SYSTEM \"" + entityFile.toURI() + "\">]>"
+                    + "<data><group><friend uin=\"&uin;\" /><friend uin=\"10001\" /></group></data>", "external entity");
+            checkNoEntityResolved("<!DOCTYPE data SYSTEM \"" + dtdFile.toURI() + "\">"
+                    + "<data><group><friend uin=\"&uin;\" /><friend uin=\"10001\" /></group></data>", "external DTD");
+            checkNoEntityResolved("<!DOCTYPE data [<!ENTITY uin \"" + ENTITY_UIN + "\">]>"
+                    + "<data><group><friend uin=\"&uin;\" /><friend uin=\"10001\" /></group></data>", "internal entity");
+            checkNoEntityResolved("<!DOCTYPE data [<!ENTITY a \"7777\"><!ENTITY b \"&a;&a;&a;&a;&a;&a;&a;&a;&a;&a;\"><!ENTITY c \"&b;&b;&b;&b;&b;&b;&b;&b;&b;&b;\">]>"
+                    + "<data><group><friend uin=\"&c;\" /><friend uin=\"10001\" /></group></data>", "nested entities");
+        } finally {
+            if (!entityFile.delete() || !dtdFile.delete() || !directory.delete()) {
+                System.out.println("Failed to delete " + directory);
+            }
+        }
+        System.out.println("Entities: OK");
+    }
+
+    private static void checkUins(String response, List<Long> expected, String description) throws XMLStreamException {
+        List<Long> uins = new ArrayList<Long>();
+        int count = XmlUinExtractor.FRIEND_LIST.extract(new StringReader(response), collect(uins));
+        check(uins.equals(expected), description + ": expected " + expected + ", got " + uins);
+        check(count == expected.size(), description + ": count " + count);
+    }
+
+    /**
+     * The response may be rejected, but an entity in it must never be expanded into a UIN.
+     */
+    private static void checkNoEntityResolved(String response, String description) {
+        List<Long> uins = new ArrayList<Long>();
+        try {
+            XmlUinExtractor.FRIEND_LIST.extract(new ByteArrayInputStream(response.getBytes(Charset.forName("UTF-8"))), collect(uins));
+        } catch (XMLStreamException rejected) {
+            // As good as ignoring the entity
+        }
+        for (long uin : uins) {
+            check(uin == 10001, description + " resolved into " + uin);
+        }
+    }
+
+    private static UinHandler collect(final List<Long> uins) {
+        return new UinHandler() {
+            @Override
+            public void onUin(long uin) {
+                uins.add(uin);
+            }
+        };
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + message);
+        }
+    }
+}
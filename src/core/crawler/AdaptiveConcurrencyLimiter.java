@@ -0,0 +1,112 @@
+package core.crawler;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/08/14.
+ */
+class AdaptiveConcurrencyLimiter {
+
+    /**
+     * Failure rate in a window above which the limit is halved.
+     */
+    private static final double MAX_FAILURE_RATE = 0.2;
+
+    /**
+     * How much the window's average latency may exceed the baseline before the limit is cut.
+     */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /**
+     * How fast the baseline latency drifts up each window, so it follows the upstream when it gets slower for good.
+     */
+    private static final double BASELINE_DRIFT = 1.02;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private int limit;
+
+    /**
+     * Lowest average latency seen, in nanoseconds. 0 if not known yet.
+     */
+    private double baselineLatency;
+
+    private int windowSamples;
+
+    private int windowFailures;
+
+    private long windowLatencySum;
+
+    /**
+     * The highest concurrency observed in the window.
+     */
+    private int windowMaxConcurrency;
+
+    /**
+     * Create an adaptive limiter.
+     *
+     * @param initialLimit Limit to start with.
+     * @param minLimit     The limit will never go below this.
+     * @param maxLimit     The limit will never go above this.
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Record a finished request. Once a window of about limit samples is full, the limit is adjusted:
+     * halved if too many requests failed, cut if latency rose well above the baseline, and raised if the whole limit was in use while latency stayed flat.
+     *
+     * @param latencyNanos Time the request took.
+     * @param successful   Whether the request succeeded.
+     * @param concurrency  Number of requests in flight when it finished.
+     * @return The new limit, or -1 if the limit did not change.
+     */
+    public synchronized int onSample(long latencyNanos, boolean successful, int concurrency) {
+        ++windowSamples;
+        windowLatencySum += latencyNanos;
+        if (!successful) {
+            ++windowFailures;
+        }
+        windowMaxConcurrency = Math.max(windowMaxConcurrency, concurrency);
+        if (windowSamples < Math.max(limit, 10)) {
+            return -1;
+        }
+
+        double failureRate = (double) windowFailures / windowSamples;
+        double averageLatency = (double) windowLatencySum / windowSamples;
+        if (baselineLatency == 0) {
+            baselineLatency = averageLatency;
+        } else {
+            baselineLatency = Math.min(baselineLatency * BASELINE_DRIFT, averageLatency);
+        }
+
+        int newLimit = limit;
+        if (failureRate > MAX_FAILURE_RATE) {
+            newLimit = limit / 2;
+        } else if (averageLatency > baselineLatency * LATENCY_TOLERANCE) {
+            newLimit = (int) (limit * Math.max(0.5, baselineLatency * LATENCY_TOLERANCE / averageLatency));
+        } else if (windowMaxConcurrency >= limit) {
+            newLimit = limit + Math.max(1, (int) Math.sqrt(limit));
+        }
+        newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+
+        windowSamples = 0;
+        windowFailures = 0;
+        windowLatencySum = 0;
+        windowMaxConcurrency = 0;
+        if (newLimit == limit) {
+            return -1;
+        }
+        limit = newLimit;
+        return newLimit;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+}
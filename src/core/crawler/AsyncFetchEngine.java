@@ -0,0 +1,936 @@
+package core.crawler;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.AbstractExecutionAwareRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.Cancellable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/02/14.
+ */
+class AsyncFetchEngine {
+
+    /**
+     * Milliseconds allowed for establishing a connection. Same as the blocking http client.
+     */
+    private static final int CONNECT_TIMEOUT = 1500;
+
+    /**
+     * Milliseconds a connection may stay silent before the FetchRequest is considered failed.
+     */
+    private static final int SOCKET_TIMEOUT = 30000;
+
+    /**
+     * Milliseconds an idle connection is kept for reuse. Shorter than the keep-alive timeout of most servers, so that a reused connection is rarely closed under a request.
+     */
+    private static final int KEEP_ALIVE_TIMEOUT = 10000;
+
+    /**
+     * The most idle connections each I/O thread keeps to one address.
+     */
+    private static final int MAX_IDLE_CONNECTIONS_PER_ADDRESS = 32;
+
+    /**
+     * Milliseconds a resolved host address is used before the host is resolved again.
+     */
+    private static final long DNS_CACHE_MILLIS = 60000;
+
+    /**
+     * Size of the buffer each I/O thread reads into.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Unique ID for this AsyncFetchEngine object.
+     */
+    private static int seq = 0;
+
+    /**
+     * I/O threads. Each of them drives its own connections with a selector.
+     */
+    private IOReactor[] reactors;
+
+    /**
+     * Used to spread exchanges over the I/O threads.
+     */
+    private final AtomicInteger nextReactor = new AtomicInteger();
+
+    /**
+     * Resolved addresses of hosts, each kept for DNS_CACHE_MILLIS.
+     */
+    private final ConcurrentHashMap<String, ResolvedHost> resolvedHosts = new ConcurrentHashMap<String, ResolvedHost>();
+
+    /**
+     * Resolves hosts which aren't cached, so that submit() never blocks on DNS. QQSpaceCrawler only talks to a few hosts, so one thread is enough.
+     */
+    private ExecutorService resolverExecutor;
+
+    /**
+     * Where finished FetchRequest will be reported.
+     */
+    private Callback callback;
+
+    /**
+     * Create an async fetch engine.
+     *
+     * @param ioThreadNum The number of I/O threads.
+     * @param callback    Where finished FetchRequest will be reported. It is called on an I/O thread or the resolver thread, and must not block.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public AsyncFetchEngine(int ioThreadNum, Callback callback) throws IOException {
+        final int id = ++seq;
+        this.callback = callback;
+        resolverExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AsyncFetchEngine-" + id + "-Resolver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reactors = new IOReactor[ioThreadNum];
+        for (int i = 0; i < ioThreadNum; ++i) {
+            reactors[i] = new IOReactor("AsyncFetchEngine-" + id + "-IO-" + i);
+            reactors[i].start();
+        }
+    }
+
+    /**
+     * Start executing a FetchRequest. This returns immediately, the result will be reported to callback.
+     * <p/>
+     * Connections are kept alive and reused by later requests to the same address on the same I/O thread. Redirects are not followed, and only plain http is supported.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     */
+    public void submit(final InFlightRequest inFlightRequest) {
+        final URI uri = inFlightRequest.getFetchRequest().getHttpRequest().getURI();
+        if (!"http".equalsIgnoreCase(uri.getScheme())) {
+            callback.onFetchFinished(inFlightRequest, null);
+            return;
+        }
+        InetAddress address = getCachedAddress(uri.getHost());
+        if (address != null) {
+            start(inFlightRequest, uri, address);
+            return;
+        }
+        resolverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                InetAddress address;
+                try {
+                    address = resolve(uri.getHost());
+                } catch (IOException e) {
+                    callback.onFetchFinished(inFlightRequest, null);
+                    return;
+                }
+                start(inFlightRequest, uri, address);
+            }
+        });
+    }
+
+    /**
+     * Hand a FetchRequest whose host has been resolved to an I/O thread.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     * @param uri             URI of its http request.
+     * @param address         Address of the host.
+     */
+    private void start(InFlightRequest inFlightRequest, URI uri, InetAddress address) {
+        HttpUriRequest httpRequest = inFlightRequest.getFetchRequest().getHttpRequest();
+        IOReactor reactor = reactors[(nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+        Exchange exchange = new Exchange(reactor, inFlightRequest, new InetSocketAddress(address, uri.getPort() == -1 ? 80 : uri.getPort()), encodeRequest(httpRequest, uri));
+        if (httpRequest instanceof AbstractExecutionAwareRequest) {
+            ((AbstractExecutionAwareRequest) httpRequest).setCancellable(exchange);
+        }
+        reactor.register(exchange);
+    }
+
+    /**
+     * Get the cached address of a host.
+     *
+     * @param host Host name.
+     * @return Address of the host, or null if it hasn't been resolved or has been cached for too long.
+     */
+    private InetAddress getCachedAddress(String host) {
+        ResolvedHost resolvedHost = resolvedHosts.get(host);
+        return resolvedHost != null && resolvedHost.expireTime > System.currentTimeMillis() ? resolvedHost.address : null;
+    }
+
+    /**
+     * Resolve a host name, using the cached address if it is still fresh. Blocks on DNS otherwise.
+     *
+     * @param host Host name.
+     * @return Address of the host.
+     * @throws IOException If the host cannot be resolved.
+     */
+    private InetAddress resolve(String host) throws IOException {
+        InetAddress address = getCachedAddress(host);
+        if (address == null) {
+            address = InetAddress.getByName(host);
+            resolvedHosts.put(host, new ResolvedHost(address, System.currentTimeMillis() + DNS_CACHE_MILLIS));
+        }
+        return address;
+    }
+
+    /**
+     * Serialize an http request into HTTP/1.1 wire format.
+     *
+     * @param httpRequest The http request.
+     * @param uri         URI of the http request.
+     * @return Request bytes ready to be written.
+     */
+    private ByteBuffer encodeRequest(HttpUriRequest httpRequest, URI uri) {
+        StringBuilder builder = new StringBuilder(256);
+        String path = uri.getRawPath();
+        builder.append(httpRequest.getMethod()).append(' ').append(path == null || path.isEmpty() ? "/" : path);
+        if (uri.getRawQuery() != null) {
+            builder.append('?').append(uri.getRawQuery());
+        }
+        builder.append(" HTTP/1.1\r\n");
+        builder.append("Host: ").append(uri.getHost());
+        if (uri.getPort() != -1) {
+            builder.append(':').append(uri.getPort());
+        }
+        builder.append("\r\n");
+        for (Header header : httpRequest.getAllHeaders()) {
+            builder.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (!httpRequest.containsHeader("Accept-Encoding")) {
+            builder.append("Accept-Encoding: ").append(ContentEncoding.ACCEPT_ENCODING).append("\r\n");
+        }
+        builder.append("\r\n"); // HTTP/1.1 connections are persistent unless either side says otherwise
+        return ByteBuffer.wrap(builder.toString().getBytes(ASCII));
+    }
+
+    /**
+     * Receives finished FetchRequest.
+     */
+    interface Callback {
+
+        /**
+         * Called when a FetchRequest has been executed. Also called for aborted FetchRequest, as a failure.
+         *
+         * @param inFlightRequest Execution of a FetchRequest.
+         * @param response        Fetch result (HTTP Body), or null if request failed.
+         */
+        void onFetchFinished(InFlightRequest inFlightRequest, FetchResponse response);
+    }
+
+    /**
+     * Response bytes received so far, kept in a pooled FetchResponse which later holds the decoded body.
+     */
+    private static class ResponseBuffer {
+
+        /**
+         * Raw response bytes, including the header.
+         */
+        private FetchResponse raw = new FetchResponse(4096);
+
+        /**
+         * Where to continue searching for the end of the header.
+         */
+        private int headerScanOffset = 3;
+
+        /**
+         * Offset of the body, or -1 if the header has not been fully received.
+         */
+        private int bodyOffset = -1;
+
+        /**
+         * Value of Content-Length, or -1 if unknown.
+         */
+        private long contentLength = -1;
+
+        private int statusCode;
+
+        private boolean chunked;
+
+        /**
+         * Whether the server allows the connection to be reused after this response.
+         */
+        private boolean keepAlive;
+
+        /**
+         * Where the next chunk starts, while looking for the end of a chunked body.
+         */
+        private int chunkScanOffset = -1;
+
+        /**
+         * Offset just past the whole response, or -1 if it hasn't been fully received or ends when the connection is closed.
+         */
+        private int responseEnd = -1;
+
+        /**
+         * Value of Content-Encoding, or null if there is none.
+         */
+        private String contentEncoding;
+
+        private Charset charset = FetchResponse.DEFAULT_CHARSET;
+
+        public void write(byte[] bytes, int offset, int count) {
+            raw.write(bytes, offset, count);
+        }
+
+        public boolean isEmpty() {
+            return raw.getLength() == 0;
+        }
+
+        /**
+         * Try to parse the response header.
+         *
+         * @return true if the header has been parsed.
+         * @throws IOException If the header is malformed.
+         */
+        public boolean parseHeader() throws IOException {
+            if (bodyOffset != -1) {
+                return true;
+            }
+            byte[] buf = raw.getBuffer();
+            int count = raw.getLength();
+            int end = -1;
+            for (; headerScanOffset < count; ++headerScanOffset) {
+                int i = headerScanOffset;
+                if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r') {
+                    end = i + 1;
+                    break;
+                }
+            }
+            if (end == -1) {
+                return false;
+            }
+            String[] lines = new String(buf, 0, end - 4, ASCII).split("\r\n");
+            String[] statusLine = lines[0].split(" ");
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line: " + lines[0]);
+            }
+            keepAlive = !statusLine[0].equals("HTTP/1.0"); // HTTP/1.0 keep-alive is not worth supporting
+            try {
+                statusCode = Integer.parseInt(statusLine[1]);
+                for (int i = 1; i < lines.length; ++i) {
+                    int colon = lines[i].indexOf(':');
+                    if (colon <= 0) {
+                        continue;
+                    }
+                    String name = lines[i].substring(0, colon).trim();
+                    String value = lines[i].substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        contentLength = Long.parseLong(value);
+                    } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                        chunked = value.toLowerCase().contains("chunked");
+                    } else if (name.equalsIgnoreCase("Connection")) {
+                        keepAlive &= !value.toLowerCase().contains("close");
+                    } else if (name.equalsIgnoreCase("Content-Encoding")) {
+                        contentEncoding = value;
+                    } else if (name.equalsIgnoreCase("Content-Type")) {
+                        int charsetIndex = value.toLowerCase().indexOf("charset=");
+                        if (charsetIndex != -1) {
+                            String charsetName = value.substring(charsetIndex + 8).split(";")[0].replace("\"", "").trim();
+                            if (Charset.isSupported(charsetName)) {
+                                charset = Charset.forName(charsetName);
+                            }
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed header", e);
+            }
+            bodyOffset = end;
+            return true;
+        }
+
+        /**
+         * Return whether the whole response has been received, as told by its status code, Content-Length or last chunk.
+         * <p/>
+         * A body without either ends when the connection is closed, so it is never complete here.
+         *
+         * @return true if complete.
+         * @throws IOException If a chunk size is malformed.
+         */
+        public boolean isComplete() throws IOException {
+            if (bodyOffset == -1) {
+                return false;
+            }
+            if (responseEnd != -1) {
+                return true;
+            }
+            int count = raw.getLength();
+            if (statusCode / 100 == 1 || statusCode == 204 || statusCode == 304) { // No body
+                responseEnd = bodyOffset;
+            } else if (chunked) {
+                byte[] buf = raw.getBuffer();
+                if (chunkScanOffset == -1) {
+                    chunkScanOffset = bodyOffset;
+                }
+                while (true) {
+                    int lineEnd = findLineEnd(buf, chunkScanOffset, count);
+                    if (lineEnd == -1) {
+                        return false;
+                    }
+                    String sizeLine = new String(buf, chunkScanOffset, lineEnd - chunkScanOffset, ASCII).split(";")[0].trim();
+                    int size;
+                    try {
+                        size = Integer.parseInt(sizeLine, 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed chunk size: " + sizeLine, e);
+                    }
+                    if (size == 0) { // The last chunk, followed by trailers and an empty line
+                        int position = lineEnd + 2;
+                        while ((lineEnd = findLineEnd(buf, position, count)) != -1 && lineEnd != position) {
+                            position = lineEnd + 2;
+                        }
+                        if (lineEnd == -1) {
+                            return false;
+                        }
+                        responseEnd = lineEnd + 2;
+                        break;
+                    }
+                    if (lineEnd + 2 + size + 2 > count) {
+                        return false;
+                    }
+                    chunkScanOffset = lineEnd + 2 + size + 2;
+                }
+            } else if (contentLength != -1 && count - bodyOffset >= contentLength) {
+                responseEnd = bodyOffset + (int) contentLength;
+            }
+            return responseEnd != -1;
+        }
+
+        /**
+         * Return whether the connection may be reused after this response. Should be called once it is complete and before takeBody().
+         *
+         * @return true if the server keeps the connection alive and sent nothing beyond the response.
+         */
+        public boolean isReusable() {
+            return keepAlive && responseEnd != -1 && responseEnd == raw.getLength();
+        }
+
+        /**
+         * Find the CRLF ending a line.
+         *
+         * @return Offset of the CR, or -1 if the line isn't complete.
+         */
+        private static int findLineEnd(byte[] buf, int offset, int count) {
+            for (int i = offset; i + 1 < count; ++i) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Decode the body in place and hand it over. Should be called after the whole response has been received.
+         * <p/>
+         * A compressed body is then streamed through a decompressor into a new pooled buffer.
+         * <p/>
+         * The buffer is released if the status code is not 2xx or the response is malformed.
+         *
+         * @return The body, or null if the status code is not 2xx.
+         * @throws IOException If the response is malformed, or shorter than its Content-Length or chunks say.
+         */
+        public FetchResponse takeBody() throws IOException {
+            try {
+                if (!parseHeader()) {
+                    throw new IOException("Incomplete header");
+                }
+                if (statusCode < 200 || statusCode >= 300) {
+                    release();
+                    return null;
+                }
+                byte[] buf = raw.getBuffer();
+                int count = raw.getLength();
+                int length;
+                if (!chunked) {
+                    if (contentLength != -1 && count - bodyOffset < contentLength) { // Connection closed early
+                        throw new IOException("Truncated body: " + (count - bodyOffset) + " of " + contentLength + " bytes");
+                    }
+                    length = contentLength == -1 ? count - bodyOffset : (int) contentLength;
+                    System.arraycopy(buf, bodyOffset, buf, 0, length);
+                } else {
+                    length = 0; // Decoded bytes never overtake the chunks being read, so decode in place
+                    int position = bodyOffset;
+                    while (true) {
+                        if (position >= count) { // Connection closed before the last chunk
+                            throw new IOException("Truncated chunk");
+                        }
+                        int lineEnd = position;
+                        while (lineEnd + 1 < count && !(buf[lineEnd] == '\r' && buf[lineEnd + 1] == '\n')) {
+                            ++lineEnd;
+                        }
+                        if (lineEnd + 1 >= count) {
+                            throw new IOException("Truncated chunk");
+                        }
+                        String sizeLine = new String(buf, position, lineEnd - position, ASCII).split(";")[0].trim();
+                        int size;
+                        try {
+                            size = Integer.parseInt(sizeLine, 16);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Malformed chunk size: " + sizeLine, e);
+                        }
+                        position = lineEnd + 2;
+                        if (size == 0) {
+                            break;
+                        }
+                        if (position + size > count) {
+                            throw new IOException("Truncated chunk");
+                        }
+                        System.arraycopy(buf, position, buf, length, size);
+                        length += size;
+                        position += size + 2;
+                    }
+                }
+                raw.setLength(length);
+                raw.setEncodedLength(length);
+                FetchResponse body = raw;
+                if (contentEncoding != null) {
+                    body = new FetchResponse(length * 4);
+                    InputStream decodedBody = null;
+                    try {
+                        decodedBody = ContentEncoding.decode(raw.getInputStream(), contentEncoding);
+                        body.readFrom(decodedBody);
+                    } catch (IOException e) {
+                        body.release();
+                        throw e;
+                    } finally {
+                        if (decodedBody != null) {
+                            decodedBody.close(); // Frees the decompressor
+                        }
+                    }
+                    body.setEncodedLength(length);
+                    raw.release();
+                }
+                raw = null;
+                body.setCharset(charset);
+                return body;
+            } catch (IOException e) {
+                release();
+                throw e;
+            }
+        }
+
+        /**
+         * Give the buffer back to the pool if it has not been handed over.
+         */
+        public void release() {
+            if (raw != null) {
+                raw.release();
+                raw = null;
+            }
+        }
+    }
+
+    /**
+     * A host address and until when it may be used.
+     */
+    private static class ResolvedHost {
+
+        private final InetAddress address;
+
+        /**
+         * In System.currentTimeMillis().
+         */
+        private final long expireTime;
+
+        public ResolvedHost(InetAddress address, long expireTime) {
+            this.address = address;
+            this.expireTime = expireTime;
+        }
+    }
+
+    /**
+     * An I/O thread. All operations on its connections and exchanges happen on this thread.
+     */
+    private class IOReactor extends Thread {
+
+        private Selector selector;
+
+        /**
+         * Exchanges waiting to be started.
+         */
+        private Queue<Exchange> newExchanges = new ConcurrentLinkedQueue<Exchange>();
+
+        /**
+         * Exchanges waiting to be failed because their FetchRequest was aborted.
+         */
+        private Queue<Exchange> cancelledExchanges = new ConcurrentLinkedQueue<Exchange>();
+
+        /**
+         * Idle connections kept alive for reuse, by address. The most recently used one is last.
+         */
+        private HashMap<InetSocketAddress, ArrayDeque<Connection>> idleConnections = new HashMap<InetSocketAddress, ArrayDeque<Connection>>();
+
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        public IOReactor(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        public void register(Exchange exchange) {
+            newExchanges.add(exchange);
+            selector.wakeup();
+        }
+
+        public void cancel(Exchange exchange) {
+            cancelledExchanges.add(exchange);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(1000);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+
+                Exchange exchange;
+                while ((exchange = newExchanges.poll()) != null) {
+                    start(exchange, true);
+                }
+                while ((exchange = cancelledExchanges.poll()) != null) {
+                    if (exchange.finished) {
+                        continue;
+                    }
+                    Connection connection = exchange.connection;
+                    if (connection != null && connection.exchange == exchange) {
+                        connection.exchange = null;
+                        connection.close(); // Can't be reused in the middle of a response
+                    }
+                    exchange.finish(null);
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid()) {
+                        ((Connection) key.attachment()).handle(key, readBuffer);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                ArrayList<Connection> timedOutConnections = null;
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && ((Connection) key.attachment()).deadline < now) {
+                        if (timedOutConnections == null) {
+                            timedOutConnections = new ArrayList<Connection>();
+                        }
+                        timedOutConnections.add((Connection) key.attachment());
+                    }
+                }
+                if (timedOutConnections != null) {
+                    for (Connection timedOut : timedOutConnections) { // Failing may register a new connection, so not while iterating keys
+                        timedOut.fail();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Start an exchange on an idle connection to its address, or on a new one.
+         *
+         * @param exchange An exchange which hasn't been started.
+         * @param reuse    Whether an idle connection may be used.
+         */
+        private void start(Exchange exchange, boolean reuse) {
+            if (exchange.finished) {
+                return;
+            }
+            if (exchange.inFlightRequest.isCancelled()) { // Aborted before the cancellable was registered
+                exchange.finish(null);
+                return;
+            }
+            Connection connection = reuse ? takeIdleConnection(exchange.address) : null;
+            if (connection == null) {
+                connection = new Connection(this, exchange.address);
+                try {
+                    connection.open(selector);
+                } catch (IOException e) {
+                    exchange.finish(null);
+                    return;
+                }
+            }
+            connection.start(exchange);
+        }
+
+        /**
+         * Start an exchange again on a new connection, after the reused connection it was sent on turned out to be closed by the server.
+         *
+         * @param exchange An exchange which has received nothing.
+         */
+        private void retry(Exchange exchange) {
+            exchange.retried = true;
+            exchange.connection = null;
+            exchange.requestBuffer.rewind();
+            start(exchange, false);
+        }
+
+        private Connection takeIdleConnection(InetSocketAddress address) {
+            ArrayDeque<Connection> connections = idleConnections.get(address);
+            return connections != null ? connections.pollLast() : null;
+        }
+
+        /**
+         * Keep a connection whose exchange has finished for reuse, or close it if enough are kept.
+         *
+         * @param connection An idle connection.
+         */
+        private void release(Connection connection) {
+            ArrayDeque<Connection> connections = idleConnections.get(connection.address);
+            if (connections == null) {
+                connections = new ArrayDeque<Connection>();
+                idleConnections.put(connection.address, connections);
+            }
+            if (connections.size() >= MAX_IDLE_CONNECTIONS_PER_ADDRESS) {
+                connection.close();
+                return;
+            }
+            connection.key.interestOps(SelectionKey.OP_READ); // To notice the server closing it
+            connection.deadline = System.currentTimeMillis() + KEEP_ALIVE_TIMEOUT;
+            connections.addLast(connection);
+        }
+
+        /**
+         * Close an idle connection and forget it.
+         *
+         * @param connection An idle connection.
+         */
+        private void discard(Connection connection) {
+            ArrayDeque<Connection> connections = idleConnections.get(connection.address);
+            if (connections != null) {
+                connections.remove(connection);
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * A connection to an address, running one exchange at a time. Only accessed on its I/O thread.
+     */
+    private class Connection {
+
+        private IOReactor reactor;
+        private InetSocketAddress address;
+        private SocketChannel channel;
+        private SelectionKey key;
+
+        /**
+         * The exchange running on this connection, or null if it is idle.
+         */
+        private Exchange exchange;
+
+        /**
+         * Number of exchanges started on this connection.
+         */
+        private int exchangeCount;
+
+        /**
+         * Time after which the connection is considered timed out, or closed if idle.
+         */
+        private long deadline;
+
+        public Connection(IOReactor reactor, InetSocketAddress address) {
+            this.reactor = reactor;
+            this.address = address;
+        }
+
+        public void open(Selector selector) throws IOException {
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+                key = channel.register(selector, channel.connect(address) ? 0 : SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Run an exchange on this connection, which must be idle.
+         *
+         * @param exchange The exchange.
+         */
+        public void start(Exchange exchange) {
+            this.exchange = exchange;
+            exchange.connection = this;
+            ++exchangeCount;
+            if (channel.isConnected()) {
+                deadline = System.currentTimeMillis() + SOCKET_TIMEOUT;
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        public void handle(SelectionKey key, ByteBuffer readBuffer) {
+            if (exchange == null) { // Idle, so the server has closed it or sent something unexpected
+                reactor.discard(this);
+                return;
+            }
+            try {
+                if (key.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        deadline = System.currentTimeMillis() + SOCKET_TIMEOUT;
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                } else if (key.isWritable()) {
+                    channel.write(exchange.requestBuffer);
+                    if (!exchange.requestBuffer.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    deadline = System.currentTimeMillis() + SOCKET_TIMEOUT;
+                } else if (key.isReadable()) {
+                    readBuffer.clear();
+                    int read = channel.read(readBuffer);
+                    if (read == -1) {
+                        if (exchange.responseBuffer.isEmpty()) { // Closed by the server before responding, e.g. while idle
+                            fail();
+                        } else { // A truncated response fails in takeBody()
+                            close();
+                            succeed(false);
+                        }
+                        return;
+                    }
+                    exchange.responseBuffer.write(readBuffer.array(), 0, read);
+                    deadline = System.currentTimeMillis() + SOCKET_TIMEOUT;
+                    if (exchange.responseBuffer.parseHeader() && exchange.responseBuffer.isComplete()) {
+                        succeed(exchange.responseBuffer.isReusable());
+                    }
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        /**
+         * Report the received response, and keep the connection for reuse if allowed.
+         *
+         * @param reusable Whether the connection may be reused.
+         */
+        private void succeed(boolean reusable) {
+            Exchange exchange = this.exchange;
+            this.exchange = null;
+            FetchResponse response;
+            try {
+                response = exchange.responseBuffer.takeBody();
+            } catch (IOException e) {
+                response = null;
+                reusable = false;
+            }
+            if (reusable) {
+                reactor.release(this);
+            } else {
+                close();
+            }
+            exchange.finish(response);
+        }
+
+        /**
+         * Close the connection, and fail its exchange if there is one.
+         * <p/>
+         * An exchange that received nothing on a reused connection is retried once on a new connection, as the server may have closed the connection just as it was reused.
+         */
+        public void fail() {
+            close();
+            Exchange exchange = this.exchange;
+            if (exchange == null) { // Idle
+                reactor.discard(this);
+                return;
+            }
+            this.exchange = null;
+            if (exchangeCount > 1 && !exchange.retried && exchange.responseBuffer.isEmpty()) {
+                reactor.retry(exchange);
+            } else {
+                exchange.finish(null);
+            }
+        }
+
+        public void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * A single HTTP exchange, run on a connection of its I/O thread.
+     */
+    private class Exchange implements Cancellable {
+
+        private IOReactor reactor;
+        private InFlightRequest inFlightRequest;
+        private InetSocketAddress address;
+        private ByteBuffer requestBuffer;
+        private ResponseBuffer responseBuffer = new ResponseBuffer();
+
+        /**
+         * The connection it runs on, or null if it hasn't been started. Only accessed on the I/O thread.
+         */
+        private Connection connection;
+
+        /**
+         * Whether it has been started again on a new connection. Only accessed on the I/O thread.
+         */
+        private boolean retried;
+
+        /**
+         * Whether the result has been reported. Only accessed on the I/O thread.
+         */
+        private boolean finished;
+
+        public Exchange(IOReactor reactor, InFlightRequest inFlightRequest, InetSocketAddress address, ByteBuffer requestBuffer) {
+            this.reactor = reactor;
+            this.inFlightRequest = inFlightRequest;
+            this.address = address;
+            this.requestBuffer = requestBuffer;
+        }
+
+        public void finish(FetchResponse response) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            responseBuffer.release();
+            responseBuffer = null;
+            callback.onFetchFinished(inFlightRequest, response);
+        }
+
+        @Override
+        public boolean cancel() {
+            reactor.cancel(this);
+            return true;
+        }
+    }
+}
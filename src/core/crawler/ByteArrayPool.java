@@ -0,0 +1,97 @@
+package core.crawler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/10/14.
+ */
+class ByteArrayPool {
+
+    /**
+     * Smallest pooled array is 4 KiB.
+     */
+    private static final int MIN_SIZE_SHIFT = 12;
+
+    /**
+     * Largest pooled array is 4 MiB. Bigger arrays are allocated and dropped as usual.
+     */
+    private static final int MAX_SIZE_SHIFT = 22;
+
+    /**
+     * The maximum total size of arrays kept for reuse.
+     */
+    private static final long MAX_RETAINED_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Free arrays, one queue per power-of-two size.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Queue<byte[]>[] freeArrays = new Queue[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+
+    /**
+     * Total size of arrays in freeArrays.
+     */
+    private static final AtomicLong retainedBytes = new AtomicLong();
+
+    static {
+        for (int i = 0; i < freeArrays.length; ++i) {
+            freeArrays[i] = new ConcurrentLinkedQueue<byte[]>();
+        }
+    }
+
+    private ByteArrayPool() {
+    }
+
+    /**
+     * Take an array of at least the given size, reusing a released one if possible.
+     *
+     * @param minSize The minimum size.
+     * @return An array whose length is a power of two not less than minSize.
+     */
+    public static byte[] acquire(int minSize) {
+        int shift = sizeShift(minSize);
+        if (shift > MAX_SIZE_SHIFT) {
+            return new byte[minSize];
+        }
+        byte[] array = freeArrays[shift - MIN_SIZE_SHIFT].poll();
+        if (array == null) {
+            return new byte[1 << shift];
+        }
+        retainedBytes.addAndGet(-array.length);
+        return array;
+    }
+
+    /**
+     * Give an array back for reuse. It must not be used by the caller afterwards.
+     *
+     * @param array An array returned by acquire().
+     */
+    public static void release(byte[] array) {
+        int shift = sizeShift(array.length);
+        if (shift > MAX_SIZE_SHIFT || array.length != 1 << shift) {
+            return;
+        }
+        if (retainedBytes.addAndGet(array.length) > MAX_RETAINED_BYTES) {
+            retainedBytes.addAndGet(-array.length);
+            return;
+        }
+        freeArrays[shift - MIN_SIZE_SHIFT].add(array);
+    }
+
+    /**
+     * Get the shift of the smallest pooled size not less than size.
+     *
+     * @param size Size in bytes.
+     * @return log2 of the pooled size.
+     */
+    private static int sizeShift(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT) {
+            return MIN_SIZE_SHIFT;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
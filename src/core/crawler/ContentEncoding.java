@@ -0,0 +1,124 @@
+package core.crawler;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/12/14.
+ */
+class ContentEncoding {
+
+    /**
+     * Value of the Accept-Encoding header sent with every FetchRequest.
+     */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * Wrap a stream of encoded body bytes so that reading it yields the decoded body.
+     * <p/>
+     * The returned stream must be closed, which frees the native memory of its decompressor and closes inputStream.
+     *
+     * @param inputStream     Encoded body.
+     * @param contentEncoding Value of the Content-Encoding header, or null if there is none.
+     * @return A stream decompressing on the fly, or inputStream itself if it is not encoded.
+     * @throws IOException If the encoding is not supported or the stream header is malformed.
+     */
+    public static InputStream decode(InputStream inputStream, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return inputStream;
+        }
+        String encoding = contentEncoding.trim().toLowerCase();
+        if (encoding.isEmpty() || encoding.equals("identity")) {
+            return inputStream;
+        }
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            return new GZIPInputStream(inputStream, 8192);
+        }
+        if (encoding.equals("deflate")) {
+            return inflate(inputStream);
+        }
+        throw new IOException("Unsupported content encoding: " + contentEncoding);
+    }
+
+    /**
+     * Wrap a "deflate" body. Servers send either zlib-wrapped or raw deflate data under this name, so the zlib header is sniffed.
+     *
+     * @param inputStream Deflated body.
+     * @return A stream inflating on the fly, which ends its Inflater when closed.
+     * @throws IOException
+     */
+    private static InputStream inflate(InputStream inputStream) throws IOException {
+        PushbackInputStream pushbackInputStream = new PushbackInputStream(inputStream, 2);
+        int first = pushbackInputStream.read();
+        int second = first == -1 ? -1 : pushbackInputStream.read();
+        if (second != -1) {
+            pushbackInputStream.unread(second);
+        }
+        if (first != -1) {
+            pushbackInputStream.unread(first);
+        }
+        boolean zlibWrapped = first != -1 && second != -1 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+        final Inflater inflater = new Inflater(!zlibWrapped);
+        return new InflaterInputStream(pushbackInputStream, inflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end(); // Not done by InflaterInputStream for an Inflater it is given
+                }
+            }
+        };
+    }
+
+    /**
+     * A stream counting the bytes read through it.
+     */
+    static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        public CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                ++count;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
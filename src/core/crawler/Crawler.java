@@ -1,9 +1,19 @@
 package core.crawler;
 
+import core.storage.UserCursor;
 import core.storage.UserStorage;
 
+import java.util.Collections;
 import java.util.List;
-import java.util.Vector;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Project: SocialCrawler
@@ -13,14 +23,19 @@ import java.util.Vector;
 abstract class Crawler<T> {
 
     /**
-     * workingThread will be blocked when paused. This monitor helps to wake it up when continued.
+     * Guards pausing and resuming.
      */
-    private final Object pauseMonitor = new Object();
+    private final ReentrantLock pauseLock = new ReentrantLock();
 
     /**
-     * Helps notify the crawler that workingThread has been successfully paused.
+     * workingThread waits here while paused, until the crawler is started again.
      */
-    private final Object pauseSuccessMonitor = new Object();
+    private final Condition resumeCondition = pauseLock.newCondition();
+
+    /**
+     * pause() waits here until workingThread has been successfully paused.
+     */
+    private final Condition pausedCondition = pauseLock.newCondition();
 
     /**
      * An internal thread that handles the crawler's job.
@@ -30,7 +45,7 @@ abstract class Crawler<T> {
     /**
      * Current working state.
      */
-    private State state = Crawler.State.STOPPED;
+    private volatile State state = Crawler.State.STOPPED;
 
     /**
      * The FetcherPool to which the crawler will send FetchRequest.
@@ -43,19 +58,89 @@ abstract class Crawler<T> {
     private UserStorage<T> userStorage;
 
     /**
-     * Current user offset in userStorage.
+     * Position in userStorage of the last user whose FetchRequest have been generated.
+     */
+    private volatile long userPosition;
+
+    /**
+     * Reads users from userStorage. Opened by frontierThread at userPosition when it starts.
+     */
+    private UserCursor<T> userCursor;
+
+    /**
+     * An internal thread that reads users ahead and generates their FetchRequest into bufferedFetchRequests, while workingThread sends them.
+     */
+    private Thread frontierThread;
+
+    /**
+     * Tells frontierThread to quit. Not done by interrupting, as an interrupt may close the files read by userCursor.
+     */
+    private volatile boolean frontierStopped;
+
+    /**
+     * Guards newUsersEventCount.
+     */
+    private final ReentrantLock frontierLock = new ReentrantLock();
+
+    /**
+     * frontierThread waits here when it has run out of users. notifyNewUsers() wakes it up.
+     */
+    private final Condition newUsersCondition = frontierLock.newCondition();
+
+    /**
+     * Number of times notifyNewUsers() has been called, so that frontierThread doesn't miss a call made while it was reading.
+     */
+    private long newUsersEventCount;
+
+    /**
+     * The longest frontierThread waits for notifyNewUsers() before looking for new users again, in milliseconds. Users may be added by others.
+     */
+    private static final long FRONTIER_IDLE_TIMEOUT = 2000;
+
+    /**
+     * FetchRequest that has been sent to FetcherPool but not yet returned. Removed from by every fetcher, so it is a concurrent set.
+     */
+    private final Set<FetchRequest<T>> pendingFetchRequests = Collections.newSetFromMap(new ConcurrentHashMap<FetchRequest<T>, Boolean>());
+
+    /**
+     * FetchRequest that were aborted by pause and need to be resent to FetcherPool.
+     */
+    private final Queue<FetchRequest<T>> failedFetchRequests = new LinkedBlockingQueue<FetchRequest<T>>();
+
+    /**
+     * FetchRequest that is generated but has not been sent to FetcherPool. Bounded by generationWindow, so frontierThread waits when it is ahead enough. Created when the crawler starts.
      */
-    private long userOffset;
+    private BlockingQueue<FetchRequest<T>> bufferedFetchRequests;
 
     /**
-     * FetchRequest that has been sent to FetcherPool but not yet returned.
+     * The most FetchRequest that may be generated ahead of sending.
      */
-    private Vector<FetchRequest> pendingFetchRequests = new Vector<FetchRequest>();
+    private int generationWindow = 200;
 
     /**
-     * FetchRequest that failed to execute and need to be resent to FetcherPool.
+     * Holds FetchRequest that failed to execute until they may be retried.
      */
-    private Vector<FetchRequest> failedFetchRequests = new Vector<FetchRequest>();
+    private RetryScheduler<T> retryScheduler = new RetryScheduler<T>(5, 1000, 60000, 0.1);
+
+    /**
+     * Number of FetchRequest that have been given up.
+     */
+    private final AtomicLong deadFetchRequestCount = new AtomicLong();
+
+    /**
+     * Parses successful responses off the fetcher threads. Created when the crawler starts.
+     */
+    private PipelineStage<ParseTask> parseStage;
+
+    /**
+     * Runs storage writes handed over by persist(), so that slow writes hold back neither fetchers nor parsers. Created when the crawler starts.
+     */
+    private PipelineStage<Runnable> persistStage;
+
+    private int parseThreadCount = 2;
+    private int parseQueueCapacity = 100;
+    private int persistThreadCount = 1;
+    private int persistQueueCapacity = 1000;
 
     /**
      * A custom signal which helps handle pause/stop
@@ -77,11 +162,13 @@ abstract class Crawler<T> {
      * Generate a group of FetchRequest according to the given user.
      * <p/>
      * Implemented by subclasses. The FetchRequest will then be sent to fetcherPool.
+     * <p/>
+     * Called from frontierThread, ahead of sending, for one user at a time.
      *
      * @param user From which the FetchRequest will be generated
      * @return A list of FetchRequest.
      */
-    abstract protected List<FetchRequest> generateFetchRequest(T user);
+    abstract protected List<FetchRequest<T>> generateFetchRequest(T user);
 
     // The fetchRequest is guaranteed to be successful
 
@@ -89,31 +176,103 @@ abstract class Crawler<T> {
      * Called when a FetchRequest is successfully finished.
      * <p/>
      * Implemented by subclasses. Usually do some post-processing procedures. The FetchRequest received here is guaranteed to be successful.
+     * <p/>
+     * Called from the threads of the parse stage, not the fetchers. Storage writes should be handed to persist() rather than done here.
+     * <p/>
+     * The response is backed by a pooled buffer which is recycled after this returns, so it must not be kept. Prefer reading it as a stream over decoding it into a String.
      *
      * @param fetchRequest The FetchRequest that has been finished.
-     * @param content Fetch result (HTTP Body) as String.
+     * @param response Fetch result (HTTP Body).
      */
-    abstract protected void onFetchRequestPostExecutionImpl(FetchRequest fetchRequest, String content);
+    abstract protected void onFetchRequestPostExecutionImpl(FetchRequest<T> fetchRequest, FetchResponse response);
+
+    /**
+     * Called when a FetchRequest is given up, because it failed too many times or the retry budget is exhausted.
+     * <p/>
+     * This is the dead-letter sink of the crawler. Subclasses may override it to record the request somewhere for later inspection.
+     *
+     * @param fetchRequest The FetchRequest that has been given up.
+     * @param reason       Why it has been given up.
+     */
+    protected void onFetchRequestDead(FetchRequest<T> fetchRequest, String reason) {
+        System.out.println(String.format("[%s] Given up: %s.", fetchRequest.getType(), reason));
+    }
 
     /**
      * Called when FetchRequest has been executed.
      * <p/>
-     * This will remove the FetchRequest from the pending list. If the request failed to complete, it will be add to failed list to resend. Subclass's implementation will also be called.
+     * This will remove the FetchRequest from the pending list. If the request failed to complete, it will be scheduled for a retry after a backoff, or given up. Subclass's implementation will also be called.
      *
      * @param fetchRequest FetchRequest that has been executed.
-     * @param content      Fetch result (HTTP Body string), or null if request failed.
+     * @param response     Fetch result (HTTP Body), or null if request failed. Only valid during this call.
      */
-    protected void onFetchRequestPostExecution(FetchRequest fetchRequest, String content) {
+    protected void onFetchRequestPostExecution(FetchRequest<T> fetchRequest, FetchResponse response) {
         // Remove from pendingFetchRequests
         pendingFetchRequests.remove(fetchRequest);
 
-        // Add failed request to failedFetchRequest for later resending
+        // Schedule failed request for later resending
         if (fetchRequest.getState() == FetchRequest.State.Failed) {
-            failedFetchRequests.add(fetchRequest);
+            fetchRequest.setAttemptCount(fetchRequest.getAttemptCount() + 1);
+            String reason = retryScheduler.schedule(fetchRequest);
+            if (reason != null) {
+                deadFetchRequestCount.incrementAndGet();
+                onFetchRequestDead(fetchRequest, reason);
+            }
             return;
         }
 
-        onFetchRequestPostExecutionImpl(fetchRequest, content); // Call the subclass's implementation
+        // Hand over to the parse stage, which calls the subclass's implementation. Blocks while it is full.
+        response.retain();
+        try {
+            parseStage.put(new ParseTask(fetchRequest, response));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.release();
+        }
+    }
+
+    /**
+     * Hand a storage write over to the persist stage, waiting while it is full.
+     * <p/>
+     * Writes are run in the order they are handed over only if the persist stage has a single thread.
+     *
+     * @param write The write.
+     */
+    protected void persist(Runnable write) {
+        try {
+            persistStage.put(write);
+        } catch (InterruptedException e) { // The interrupt status is cleared, so that the write doesn't fail on it
+            try {
+                write.run(); // Not to lose what has been fetched
+            } finally {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Open the cursor from which users are crawled, in the order they are returned.
+     * <p/>
+     * Walks userStorage in storage order. Subclasses may override it to crawl users in another order.
+     *
+     * @param position Position to start after, as returned by UserCursor.getPosition(), or 0 to start from the first user.
+     * @return A cursor.
+     */
+    protected UserCursor<T> openUserCursor(long position) {
+        return userStorage.openCursor(position);
+    }
+
+    /**
+     * Tell the crawler that users have been added to userStorage, e.g. by insertIfNotExisted(). Wakes up frontierThread if it has run out of users.
+     */
+    protected void notifyNewUsers() {
+        frontierLock.lock();
+        try {
+            ++newUsersEventCount;
+            newUsersCondition.signalAll();
+        } finally {
+            frontierLock.unlock();
+        }
     }
 
     /**
@@ -122,108 +281,154 @@ abstract class Crawler<T> {
     public void start() {
         switch (state) {
             case PAUSED:
-                synchronized (pauseMonitor) {
-                    pauseMonitor.notify();
+                pauseLock.lock();
+                try {
+                    state = Crawler.State.WORKING;
+                    resumeCondition.signal();
+                } finally {
+                    pauseLock.unlock();
                 }
                 break;
 
             case STOPPED:
-                workingThread = new Thread(new Runnable() {
+                persistStage = new PipelineStage<Runnable>("Persist", persistThreadCount, persistQueueCapacity, new PipelineStage.Worker<Runnable>() {
+                    @Override
+                    public void process(Runnable write) {
+                        write.run();
+                    }
+                });
+                parseStage = new PipelineStage<ParseTask>("Parse", parseThreadCount, parseQueueCapacity, new PipelineStage.Worker<ParseTask>() {
+                    @Override
+                    public void process(ParseTask parseTask) {
+                        try {
+                            onFetchRequestPostExecutionImpl(parseTask.fetchRequest, parseTask.response); // Call the subclass's implementation
+                        } finally {
+                            parseTask.response.release();
+                        }
+                    }
+                });
+                persistStage.start(fetcherPool);
+                parseStage.start(fetcherPool);
+                bufferedFetchRequests = new LinkedBlockingQueue<FetchRequest<T>>(generationWindow);
+                frontierStopped = false;
+                frontierThread = fetcherPool.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        generateFetchRequests();
+                    }
+                });
+                frontierThread.setName(getClass().getSimpleName() + "FrontierThread");
+                frontierThread.setDaemon(true);
+                frontierThread.start();
+                workingThread = fetcherPool.newThread(new Runnable() {
                     @Override
                     public void run() { // Wow.
-                        Vector<FetchRequest> bufferedFetchRequests = new Vector<FetchRequest>(); // Store FetchRequest that is generated but has not been sent to FetcherPool
-                        synchronized (pauseMonitor) { // Wow..
-                            LOOP:
-                            while (true) { // Wow...
-                                // Handle signal
-                                if (signal != null) { // Wow....
-                                    Signal tSignal = signal;
-                                    signal = null; // Consume signal
-                                    switch (tSignal) { // Wow..... So many nest...
-                                        case PAUSE:
-                                            // Abort pending FetchRequest and move them into failedFetchRequests for later resending
-                                            for (FetchRequest fetchRequest : pendingFetchRequests) {
-                                                fetcherPool.abortRequest(fetchRequest);
-                                                failedFetchRequests.add(fetchRequest);
-                                            }
-                                            pendingFetchRequests.clear();
-
-                                            // Wait until started again
+                        LOOP:
+                        while (true) { // Wow...
+                            // Handle signal
+                            if (signal != null) { // Wow....
+                                Signal tSignal = signal;
+                                signal = null; // Consume signal
+                                switch (tSignal) { // Wow..... So many nest...
+                                    case PAUSE:
+                                        // Abort pending FetchRequest and move them into failedFetchRequests for later resending
+                                        failedFetchRequests.addAll(fetcherPool.abortRequests(Crawler.this));
+                                        pendingFetchRequests.clear();
+                                        try { // Let what has been fetched reach the storage
+                                            parseStage.awaitIdle();
+                                            persistStage.awaitIdle();
+                                        } catch (InterruptedException e) {
+                                            Thread.interrupted();
+                                        }
+                                        userStorage.flush();
+
+                                        // Wait until started again
+                                        pauseLock.lock();
+                                        try {
                                             state = Crawler.State.PAUSED;
-                                            synchronized (pauseSuccessMonitor) {
-                                                pauseSuccessMonitor.notify();
-                                            }
-                                            try {
-                                                pauseMonitor.wait();
-                                            } catch (InterruptedException e) {
-                                                Thread.interrupted();
-                                                break LOOP;
+                                            pausedCondition.signalAll();
+                                            while (state == Crawler.State.PAUSED) {
+                                                resumeCondition.await();
                                             }
-                                            continue LOOP;
-
-                                        case STOP:
-                                            // Abort pending FetchRequest
-                                            for (FetchRequest fetchRequest : pendingFetchRequests) {
-                                                fetcherPool.abortRequest(fetchRequest);
-                                            }
-
-                                            // Clear variables for reusing
-                                            userOffset = 0;
-                                            pendingFetchRequests.clear();
-                                            failedFetchRequests.clear();
-
-                                            // Stop workingThread
-                                            state = Crawler.State.STOPPED;
+                                        } catch (InterruptedException e) {
+                                            Thread.interrupted();
+                                            break LOOP;
+                                        } finally {
+                                            pauseLock.unlock();
+                                        }
+                                        continue LOOP;
+
+                                    case STOP:
+                                        // Abort pending FetchRequest
+                                        fetcherPool.abortRequests(Crawler.this);
+
+                                        // Stop generating FetchRequest. It closes userCursor.
+                                        frontierStopped = true;
+                                        frontierLock.lock();
+                                        try {
+                                            newUsersCondition.signalAll();
+                                        } finally {
+                                            frontierLock.unlock();
+                                        }
+                                        try {
+                                            frontierThread.join();
+                                        } catch (InterruptedException e) {
+                                            Thread.interrupted();
+                                        }
+
+                                        // Clear variables for reusing
+                                        userPosition = 0;
+                                        pendingFetchRequests.clear();
+                                        failedFetchRequests.clear();
+                                        bufferedFetchRequests.clear();
+                                        retryScheduler.clear();
+                                        try { // Parse and persist what has been fetched, in this order
+                                            parseStage.stop();
+                                            persistStage.stop();
+                                        } catch (InterruptedException e) {
+                                            Thread.interrupted();
+                                        }
+                                        userStorage.flush();
+
+                                        // Stop workingThread
+                                        state = Crawler.State.STOPPED;
+
+                                        // TODO: Add OnCrawlerStopListener
+                                        System.out.println(this.getClass().getName() + " stopped.");
+
+                                        break LOOP;
+                                }
+                            }
 
-                                            // TODO: Add OnCrawlerStopListener
-                                            System.out.println(this.getClass().getName() + " stopped.");
+                            // Send FetchRequest. ONLY ONE FetcherRequest will be sent in a loop. Blocks while fetchers are all busy.
+                            try {
+                                // Hold back while parsing or persisting can't keep up
+                                persistStage.awaitNotFull();
+                                parseStage.awaitNotFull();
+
+                                // Resend one FetchRequest aborted by pause
+                                FetchRequest<T> abortedFetchRequest = failedFetchRequests.poll();
+                                if (abortedFetchRequest != null) {
+                                    sendFetchRequest(abortedFetchRequest);
+                                    continue;
+                                }
 
-                                            break LOOP;
-                                    }
+                                // Resend one failed FetchRequest whose backoff has expired
+                                FetchRequest<T> retryFetchRequest = retryScheduler.poll();
+                                if (retryFetchRequest != null) {
+                                    sendFetchRequest(retryFetchRequest);
+                                    continue;
                                 }
 
-                                // Send FetchRequest. ONLY ONE FetcherRequest will be sent in a loop.
-                                try {
-                                    // Resend one failed FetchRequest
-                                    if (!failedFetchRequests.isEmpty()) {
-                                        FetchRequest fetchRequest = failedFetchRequests.firstElement();
-                                        failedFetchRequests.remove(fetchRequest);
-                                        fetcherPool.executeRequest(fetchRequest);
-                                        pendingFetchRequests.add(fetchRequest);
-                                        continue;
-                                    }
-
-                                    // Send one already generated FetchRequest in the buffer
-                                    if (!bufferedFetchRequests.isEmpty()) {
-                                        FetchRequest fetchRequest = bufferedFetchRequests.firstElement();
-                                        bufferedFetchRequests.remove(fetchRequest);
-                                        fetcherPool.executeRequest(fetchRequest);
-                                        pendingFetchRequests.add(fetchRequest);
-                                        continue;
-                                    }
-
-                                    // Read one user from UserStorage, generate a group of FetchRequest, send the first one to FetcherPool, buffer the others.
-                                    T user = userStorage.find(userOffset);
-                                    if (user == null) { // There is no more user
-                                        Thread.sleep(2000); // Wait for more users
-                                        continue;
-                                    }
-                                    ++userOffset;
-                                    List<FetchRequest> fetchRequests = generateFetchRequest(user);
-                                    if (fetchRequests.isEmpty()) {
-                                        continue;
-                                    }
-                                    FetchRequest fetchRequest = fetchRequests.get(0);
-                                    fetcherPool.executeRequest(fetchRequest);
-                                    pendingFetchRequests.add(fetchRequest); // Send the first one
-                                    for (int i = 1; i < fetchRequests.size(); ++i) { // Buffer the others
-                                        bufferedFetchRequests.add(fetchRequests.get(i));
-                                    }
-
-                                } catch (InterruptedException e) {
-                                    Thread.interrupted();
-                                    break;
+                                // Send one FetchRequest generated by frontierThread, waiting a little for one if there is none yet
+                                FetchRequest<T> bufferedFetchRequest = bufferedFetchRequests.poll(100, TimeUnit.MILLISECONDS);
+                                if (bufferedFetchRequest != null) {
+                                    sendFetchRequest(bufferedFetchRequest);
                                 }
+
+                            } catch (InterruptedException e) {
+                                Thread.interrupted();
+                                break;
                             }
                         }
                     }
@@ -234,15 +439,186 @@ abstract class Crawler<T> {
         state = Crawler.State.WORKING;
     }
 
+    /**
+     * Body of frontierThread. Reads users from userStorage and generates their FetchRequest into bufferedFetchRequests until frontierStopped.
+     * <p/>
+     * Waits while bufferedFetchRequests is full, and until notifyNewUsers() when there is no more user.
+     */
+    private void generateFetchRequests() {
+        userCursor = openUserCursor(userPosition);
+        try {
+            while (!frontierStopped) {
+                long eventCount;
+                frontierLock.lock();
+                try {
+                    eventCount = newUsersEventCount;
+                } finally {
+                    frontierLock.unlock();
+                }
+                T user;
+                try {
+                    user = userCursor.next();
+                } catch (RuntimeException e) { // e.g. the database is gone for a while
+                    e.printStackTrace();
+                    user = null;
+                }
+                if (user == null) { // There is no more user
+                    frontierLock.lock();
+                    try {
+                        if (!frontierStopped && eventCount == newUsersEventCount) {
+                            newUsersCondition.await(FRONTIER_IDLE_TIMEOUT, TimeUnit.MILLISECONDS); // Wait for more users
+                        }
+                    } finally {
+                        frontierLock.unlock();
+                    }
+                    continue;
+                }
+                for (FetchRequest<T> fetchRequest : generateFetchRequest(user)) {
+                    while (!bufferedFetchRequests.offer(fetchRequest, 100, TimeUnit.MILLISECONDS)) {
+                        if (frontierStopped) {
+                            return;
+                        }
+                    }
+                }
+                userPosition = userCursor.getPosition();
+            }
+        } catch (InterruptedException e) {
+            Thread.interrupted();
+        } finally {
+            userCursor.close();
+            userCursor = null;
+        }
+    }
+
+    /**
+     * Send a FetchRequest to fetcherPool and track it as pending.
+     *
+     * @param fetchRequest FetchRequest to send.
+     * @throws InterruptedException
+     */
+    private void sendFetchRequest(FetchRequest<T> fetchRequest) throws InterruptedException {
+        if (fetchRequest.getAttemptCount() == 0) {
+            retryScheduler.onFirstAttempt();
+        }
+        pendingFetchRequests.add(fetchRequest); // Before executing, as it may finish before executeRequest returns
+        fetcherPool.executeRequest(fetchRequest);
+    }
+
+    /**
+     * Set how failed FetchRequest are retried. Should be called before the crawler is started.
+     *
+     * @param maxAttempts      The maximum number of times a FetchRequest is executed before it is given up.
+     * @param baseDelay        Backoff before the first retry, in milliseconds. Doubled for every further attempt, with jitter.
+     * @param maxDelay         The longest backoff, in milliseconds.
+     * @param retryBudgetRatio The share of traffic that may be retries, e.g. 0.1 for 10%. Failures beyond it are given up.
+     */
+    public void setRetryPolicy(int maxAttempts, long baseDelay, long maxDelay, double retryBudgetRatio) {
+        retryScheduler = new RetryScheduler<T>(maxAttempts, baseDelay, maxDelay, retryBudgetRatio);
+    }
+
+    /**
+     * Get the number of failed FetchRequest waiting to be retried.
+     *
+     * @return Waiting retry number.
+     */
+    public int getRetryingFetchRequestCount() {
+        return retryScheduler.size();
+    }
+
+    /**
+     * Get the number of FetchRequest sent to fetcherPool and not yet returned.
+     *
+     * @return Pending FetchRequest number.
+     */
+    public int getPendingFetchRequestCount() {
+        return pendingFetchRequests.size();
+    }
+
+    /**
+     * Get the number of FetchRequest aborted by pause and waiting to be resent.
+     *
+     * @return Aborted FetchRequest number.
+     */
+    public int getAbortedFetchRequestCount() {
+        return failedFetchRequests.size();
+    }
+
+    /**
+     * Get the number of FetchRequest generated but not yet sent to fetcherPool.
+     *
+     * @return Buffered FetchRequest number.
+     */
+    public int getBufferedFetchRequestCount() {
+        return bufferedFetchRequests == null ? 0 : bufferedFetchRequests.size();
+    }
+
+    /**
+     * Set the most FetchRequest that may be generated ahead of sending. Should be called before the crawler is started.
+     * <p/>
+     * A larger window keeps fetchers busy through slow reads of userStorage, but more FetchRequest are generated again after a restart.
+     *
+     * @param generationWindow Generated but unsent FetchRequest number.
+     */
+    public void setGenerationWindow(int generationWindow) {
+        this.generationWindow = generationWindow;
+    }
+
+    /**
+     * Set the threads and queue sizes of the parse and persist stages. Should be called before the crawler is started.
+     *
+     * @param parseThreadCount     Number of threads parsing responses.
+     * @param parseQueueCapacity   Number of responses that may wait to be parsed. Fetchers wait when it is reached.
+     * @param persistThreadCount   Number of threads writing to storage. With more than one, writes of a user may be reordered.
+     * @param persistQueueCapacity Number of writes that may wait. Parsers wait when it is reached.
+     */
+    public void setPipeline(int parseThreadCount, int parseQueueCapacity, int persistThreadCount, int persistQueueCapacity) {
+        this.parseThreadCount = parseThreadCount;
+        this.parseQueueCapacity = parseQueueCapacity;
+        this.persistThreadCount = persistThreadCount;
+        this.persistQueueCapacity = persistQueueCapacity;
+    }
+
+    /**
+     * Get the parse stage, e.g. for its metrics. Null until the crawler is started.
+     *
+     * @return Parse stage.
+     */
+    public PipelineStage<?> getParseStage() {
+        return parseStage;
+    }
+
+    /**
+     * Get the persist stage, e.g. for its metrics. Null until the crawler is started.
+     *
+     * @return Persist stage.
+     */
+    public PipelineStage<?> getPersistStage() {
+        return persistStage;
+    }
+
+    /**
+     * Get the number of FetchRequest that have been given up.
+     *
+     * @return Dead FetchRequest number.
+     */
+    public long getDeadFetchRequestCount() {
+        return deadFetchRequestCount.get();
+    }
+
     /**
      * Pause the crawler without corrupting current working state.
      *
      * @throws InterruptedException
      */
     public void pause() throws InterruptedException {
-        synchronized (pauseSuccessMonitor) {
+        pauseLock.lock();
+        try {
             signal = Signal.PAUSE; // Send pause signal to workingThread
-            pauseSuccessMonitor.wait();
+            while (state != Crawler.State.PAUSED) {
+                pausedCondition.await();
+            }
+        } finally {
+            pauseLock.unlock();
         }
     }
 
@@ -260,6 +636,21 @@ abstract class Crawler<T> {
         return userStorage;
     }
 
+    /**
+     * A successful response waiting to be parsed. Holds the response until parsed.
+     */
+    private class ParseTask {
+
+        private final FetchRequest<T> fetchRequest;
+
+        private final FetchResponse response;
+
+        public ParseTask(FetchRequest<T> fetchRequest, FetchResponse response) {
+            this.fetchRequest = fetchRequest;
+            this.response = response;
+        }
+    }
+
     /**
      * Represents an crawler's working state.
      */
@@ -29,6 +29,16 @@ class FetchRequest<T> {
      */
     private T relatedModel;
 
+    /**
+     * Number of times this FetchRequest has failed.
+     */
+    private int attemptCount;
+
+    /**
+     * When the http request started executing, in System.nanoTime().
+     */
+    private long executeStartTime;
+
     /**
      * Create a fetch request.
      *
@@ -77,10 +87,35 @@ class FetchRequest<T> {
         this.httpRequest = httpRequest;
     }
 
+    public int getAttemptCount() {
+        return attemptCount;
+    }
+
+    public void setAttemptCount(int attemptCount) {
+        this.attemptCount = attemptCount;
+    }
+
+    public long getExecuteStartTime() {
+        return executeStartTime;
+    }
+
+    public void setExecuteStartTime(long executeStartTime) {
+        this.executeStartTime = executeStartTime;
+    }
+
     public Crawler<T> getSender() {
         return sender;
     }
 
+    /**
+     * Get the type of this FetchRequest, used to apply per-type rate limits.
+     *
+     * @return Simple class name of this FetchRequest.
+     */
+    public String getType() {
+        return getClass().getSimpleName();
+    }
+
     /**
      * Represent the state of an fetch request.
      */
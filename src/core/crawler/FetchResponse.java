@@ -0,0 +1,204 @@
+package core.crawler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/10/14.
+ */
+class FetchResponse {
+
+    /**
+     * Used when the response doesn't declare a charset. Same as HttpClient's EntityUtils.
+     */
+    public static final Charset DEFAULT_CHARSET = Charset.forName("ISO-8859-1");
+
+    /**
+     * Body bytes, borrowed from ByteArrayPool.
+     */
+    private byte[] buffer;
+
+    /**
+     * Number of valid bytes in buffer.
+     */
+    private int length;
+
+    /**
+     * Charset of the body.
+     */
+    private Charset charset = DEFAULT_CHARSET;
+
+    /**
+     * Number of body bytes as transferred, before content decoding.
+     */
+    private long encodedLength;
+
+    /**
+     * Number of holders of the response. The buffer goes back to the pool when the last one releases it.
+     */
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+    /**
+     * Create an empty response body.
+     *
+     * @param initialCapacity Expected body size in bytes.
+     */
+    public FetchResponse(int initialCapacity) {
+        buffer = ByteArrayPool.acquire(initialCapacity);
+    }
+
+    /**
+     * Append bytes to the body.
+     *
+     * @param bytes  Source array.
+     * @param offset Offset in bytes.
+     * @param count  Number of bytes to append.
+     */
+    public void write(byte[] bytes, int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(bytes, offset, buffer, length, count);
+        length += count;
+    }
+
+    /**
+     * Append everything from a stream to the body. The stream is not closed.
+     *
+     * @param inputStream Stream to read from.
+     * @throws IOException
+     */
+    public void readFrom(InputStream inputStream) throws IOException {
+        while (true) {
+            if (length == buffer.length) {
+                ensureCapacity(length + 1);
+            }
+            int read = inputStream.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                return;
+            }
+            length += read;
+        }
+    }
+
+    /**
+     * Get a stream over the body. Only valid until the response is released.
+     *
+     * @return A stream reading the body bytes.
+     */
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(buffer, 0, length);
+    }
+
+    /**
+     * Get a reader over the body, decoded with its charset. Only valid until the response is released.
+     *
+     * @return A reader reading the body characters.
+     */
+    public Reader getReader() {
+        return new InputStreamReader(getInputStream(), charset);
+    }
+
+    /**
+     * Decode the whole body as a String. Prefer getInputStream() or getReader() if the body only needs to be scanned.
+     *
+     * @return Body string.
+     */
+    public String getContent() {
+        return new String(buffer, 0, length, charset);
+    }
+
+    /**
+     * Copy the body out of the pooled buffer in a given charset, e.g. to keep it after the response is released.
+     * <p/>
+     * The bytes are copied as they are if the body is already in that charset, without decoding it into a String.
+     *
+     * @param charset Charset of the copy.
+     * @return Body bytes.
+     */
+    public byte[] toByteArray(Charset charset) {
+        if (charset.equals(this.charset)) {
+            return Arrays.copyOf(buffer, length);
+        }
+        return getContent().getBytes(charset);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    public long getEncodedLength() {
+        return encodedLength;
+    }
+
+    void setEncodedLength(long encodedLength) {
+        this.encodedLength = encodedLength;
+    }
+
+    /**
+     * Hold the response beyond the call it was handed to, e.g. to process it on another thread. Must be paired with a release().
+     *
+     * @return This response.
+     */
+    public FetchResponse retain() {
+        referenceCount.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Give up holding the response. The body buffer goes back to the pool when no one holds it, and it must not be used afterwards.
+     */
+    public void release() {
+        if (referenceCount.decrementAndGet() == 0 && buffer != null) {
+            ByteArrayPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Get the underlying buffer, for in-place decoding by the fetch engine.
+     *
+     * @return Body buffer.
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Set the number of valid bytes, for in-place decoding by the fetch engine.
+     *
+     * @param length Number of valid bytes.
+     */
+    void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Make sure the buffer can hold the given number of bytes, moving to a bigger pooled array if needed.
+     *
+     * @param capacity Required capacity.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= buffer.length) {
+            return;
+        }
+        byte[] newBuffer = ByteArrayPool.acquire(Math.max(capacity, buffer.length * 2));
+        System.arraycopy(buffer, 0, newBuffer, 0, length);
+        ByteArrayPool.release(buffer);
+        buffer = newBuffer;
+    }
+}
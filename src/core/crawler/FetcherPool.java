@@ -1,13 +1,40 @@
 package core.crawler;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.AbstractExecutionAwareRequest;
 import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Project: SocialCrawler
@@ -16,6 +43,26 @@ import org.apache.http.protocol.HttpContext;
  */
 public class FetcherPool {
 
+    /**
+     * Seconds a fetcher may stay idle before its thread is released.
+     */
+    private static final int FETCHER_IDLE_SECONDS = 5;
+
+    /**
+     * Number of I/O threads in ASYNC mode.
+     */
+    private static final int ASYNC_IO_THREAD_NUM = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Number of threads running onFetchRequestPostExecution in ASYNC mode.
+     */
+    private static final int ASYNC_CALLBACK_THREAD_NUM = Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * Milliseconds a delayed FetchRequest waits again when the pool has no room for it once its rate limit allows it to go.
+     */
+    private static final long DELAYED_DISPATCH_RETRY_MILLIS = 10;
+
     /**
      * Unique ID for this FetcherPool object.
      */
@@ -27,19 +74,117 @@ public class FetcherPool {
     private static FetcherPool defaultFetcherPool;
 
     /**
-     * Used by FetcherThread to notify the pool there is an available fetcher.
+     * Used to controlling HTTP connection number.
      */
-    private final Object freeFetcherMonitor = new Object();
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
 
     /**
-     * Used to controlling HTTP connection number.
+     * The maximum number of fetchers. In ASYNC and VIRTUAL mode, this is the maximum number of in-flight FetchRequest.
      */
-    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    private volatile int maxFetcherNum;
+
+    /**
+     * How FetchRequest are executed.
+     */
+    private Mode mode;
+
+    /**
+     * Adjusts maxFetcherNum from observed latency and failures, or null if maxFetcherNum is static.
+     */
+    private volatile AdaptiveConcurrencyLimiter adaptiveLimiter;
 
     /**
-     * The maximum number of fetchers.
+     * Guards inFlightCount.
      */
-    private int maxFetcherNum;
+    private final ReentrantLock inFlightLock = new ReentrantLock();
+
+    /**
+     * Signalled by finished FetchRequest when there is room for another one.
+     */
+    private final Condition inFlightRoomCondition = inFlightLock.newCondition();
+
+    /**
+     * Number of FetchRequest being executed or post-processed. Only used in ASYNC and VIRTUAL mode.
+     */
+    private int inFlightCount;
+
+    /**
+     * Executes FetchRequest without blocking a thread. Only used in ASYNC mode.
+     */
+    private AsyncFetchEngine asyncFetchEngine;
+
+    /**
+     * Runs onFetchRequestPostExecution off the I/O threads. Only used in ASYNC mode.
+     */
+    private ThreadPoolExecutor callbackExecutor;
+
+    /**
+     * FetchRequest waiting for a free fetcher. Bounded, so executeRequest blocks when fetchers fall behind.
+     */
+    private BlockingQueue<InFlightRequest> requestQueue;
+
+    /**
+     * Every FetchRequest executed by this pool and not yet reported, from executeRequest until its sender is called back.
+     * Whoever removes a FetchRequest from here owns its outcome: the fetcher reports it, or abortRequest takes it back.
+     */
+    private final ConcurrentHashMap<FetchRequest<?>, InFlightRequest> inFlightRequests = new ConcurrentHashMap<FetchRequest<?>, InFlightRequest>();
+
+    /**
+     * Number of live fetcher threads.
+     */
+    private final AtomicInteger fetcherCount = new AtomicInteger();
+
+    /**
+     * Number of fetcher threads currently executing a FetchRequest.
+     */
+    private final AtomicInteger busyFetcherCount = new AtomicInteger();
+
+    /**
+     * Rate limits per host. A request has to take a permit from both its host's and its type's bucket.
+     */
+    private final ConcurrentHashMap<String, TokenBucket> hostRateLimiters = new ConcurrentHashMap<String, TokenBucket>();
+
+    /**
+     * Rate limits per FetchRequest type.
+     */
+    private final ConcurrentHashMap<String, TokenBucket> typeRateLimiters = new ConcurrentHashMap<String, TokenBucket>();
+
+    /**
+     * Number of FetchRequest held back by a rate limiter.
+     */
+    private final AtomicInteger delayedRequestCount = new AtomicInteger();
+
+    /**
+     * Bounds delayed FetchRequest, so executeRequest blocks when rate limiters fall behind.
+     */
+    private Semaphore delayedRequestPermits;
+
+    /**
+     * Dispatches FetchRequest held back by a rate limiter once they are allowed to go.
+     */
+    private ScheduledExecutorService rateLimitTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FetcherPool-" + seq + "-RateLimitTimer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Number of FetchRequest that have been held back by a rate limiter.
+     */
+    private final AtomicLong rateLimitedCount = new AtomicLong();
+
+    /**
+     * Total time FetchRequest have spent waiting on rate limiters, in nanoseconds.
+     */
+    private final AtomicLong rateLimitWaitNanos = new AtomicLong();
+
+    /**
+     * Transfer statistics per host.
+     */
+    private final ConcurrentHashMap<String, TransferStats> transferStats = new ConcurrentHashMap<String, TransferStats>();
 
     /**
      * A thread group holding all fetcher threads.
@@ -57,14 +202,65 @@ public class FetcherPool {
      * @param maxFetcherNum The maximum number of fetcher.
      */
     public FetcherPool(int maxFetcherNum) {
+        this(maxFetcherNum, maxFetcherNum, Mode.THREADED);
+    }
+
+    /**
+     * Create a fetcher pool.
+     *
+     * @param maxFetcherNum The maximum number of fetcher.
+     * @param mode          How FetchRequest are executed.
+     */
+    public FetcherPool(int maxFetcherNum, Mode mode) {
+        this(maxFetcherNum, maxFetcherNum, mode);
+    }
+
+    /**
+     * Create a fetcher pool.
+     *
+     * @param maxFetcherNum The maximum number of fetcher.
+     * @param queueCapacity The maximum number of FetchRequest waiting for a free fetcher.
+     */
+    public FetcherPool(int maxFetcherNum, int queueCapacity) {
+        this(maxFetcherNum, queueCapacity, Mode.THREADED);
+    }
+
+    /**
+     * Create a fetcher pool.
+     *
+     * @param maxFetcherNum The maximum number of fetcher.
+     * @param queueCapacity The maximum number of FetchRequest waiting for a free fetcher. Not used in ASYNC mode.
+     * @param mode          How FetchRequest are executed.
+     */
+    public FetcherPool(int maxFetcherNum, int queueCapacity, Mode mode) {
         ++seq;
+        this.mode = mode;
+        if (mode == Mode.ASYNC) {
+            try {
+                asyncFetchEngine = new AsyncFetchEngine(ASYNC_IO_THREAD_NUM, new AsyncFetchEngine.Callback() {
+                    @Override
+                    public void onFetchFinished(InFlightRequest inFlightRequest, FetchResponse response) {
+                        onAsyncFetchFinished(inFlightRequest, response);
+                    }
+                });
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to start async fetch engine", e);
+            }
+            callbackExecutor = new ThreadPoolExecutor(ASYNC_CALLBACK_THREAD_NUM, ASYNC_CALLBACK_THREAD_NUM, FETCHER_IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            callbackExecutor.allowCoreThreadTimeOut(true);
+        }
+        requestQueue = new LinkedBlockingQueue<InFlightRequest>(queueCapacity);
+        delayedRequestPermits = new Semaphore(Math.max(queueCapacity, maxFetcherNum));
         setMaxFetcherNum(maxFetcherNum);
         RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(1500).build();
-        httpClient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig).build();
+        // Content encoding is handled by readResponse, so that transferred bytes can be counted
+        httpClient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig).disableContentCompression().build();
     }
 
     /**
      * Return a singleton of FetcherPool for using in most situations.
+     * <p/>
+     * It has 20 fetchers. Call enableAdaptiveConcurrency() on it to let the number adapt to upstream latency.
      *
      * @return A new FetcherPool if there hasn't been one before, or the existed default FetcherPool.
      */
@@ -78,58 +274,158 @@ public class FetcherPool {
     /**
      * Execute a FetchRequest on a free fetcher.
      * <p/>
-     * If there isn't any available fetcher, it will try to create a new fetcher, or wait until there is one if maxFetcherNum is reached.
+     * The request is handed to the fetchers through a bounded queue. A new fetcher is started if no idle one is left and maxFetcherNum is not reached. If the queue is full, it will wait until a fetcher takes a request from it.
+     * <p/>
+     * In ASYNC mode, the request is started on the async fetch engine right away, or after waiting until there are less than maxFetcherNum in-flight requests. VIRTUAL mode does the same, but starts a new virtual thread for the request.
+     * <p/>
+     * If the request's host or type is rate limited and no permit is available, it is held back on a timer instead of occupying a fetcher.
      *
      * @param fetchRequest FetchRequest to be executed.
      * @throws InterruptedException
      */
-    public void executeRequest(FetchRequest fetchRequest) throws InterruptedException {
-        int activeThreadCount = fetcherThreadGroup.activeCount();
-        if (activeThreadCount > maxFetcherNum) { // We can't create a new fetcher
-            synchronized (freeFetcherMonitor) {
-                OUTER:
-                while (true) {
-                    Thread[] threads = new Thread[activeThreadCount];
-                    fetcherThreadGroup.enumerate(threads);
-                    for (Thread thread : threads) { // Try to find a free fetcher
-                        if (thread instanceof FetcherThread) {
-                            FetcherThread fetcherThread = (FetcherThread) thread;
-                            if (!fetcherThread.isBusy()) {
-                                fetcherThread.setFetchRequest(fetchRequest);
-                                break OUTER;
-                            }
-                        }
-                    }
-                    freeFetcherMonitor.wait(); // If not found, wait for a fetcher's notification and begin next loop.
-                }
+    public void executeRequest(FetchRequest<?> fetchRequest) throws InterruptedException {
+        HttpUriRequest httpRequest = fetchRequest.getHttpRequest();
+        if (httpRequest.isAborted() && httpRequest instanceof AbstractExecutionAwareRequest) {
+            ((AbstractExecutionAwareRequest) httpRequest).reset(); // Make an aborted request reusable
+        }
+        fetchRequest.setState(FetchRequest.State.Pending);
+        InFlightRequest inFlightRequest = new InFlightRequest(fetchRequest);
+        inFlightRequests.put(fetchRequest, inFlightRequest);
+
+        long delay = reserveRatePermit(fetchRequest);
+        if (delay > 0) {
+            delayRequest(inFlightRequest, delay);
+            return;
+        }
+        dispatchRequest(inFlightRequest);
+    }
+
+    /**
+     * Hand a FetchRequest which is allowed to go to whatever executes it in the current mode.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     * @throws InterruptedException
+     */
+    private void dispatchRequest(InFlightRequest inFlightRequest) throws InterruptedException {
+        if (mode != Mode.THREADED) {
+            acquireInFlight();
+            startInFlight(inFlightRequest);
+            return;
+        }
+        if (fetcherCount.get() - busyFetcherCount.get() <= requestQueue.size()) { // No idle fetcher left for this request
+            startFetcher();
+        }
+        requestQueue.put(inFlightRequest);
+        ensureQueueServed();
+    }
+
+    /**
+     * Like dispatchRequest, but gives up instead of waiting when the pool is saturated.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     * @return true if dispatched, or false if there is no room for it now.
+     */
+    private boolean tryDispatchRequest(InFlightRequest inFlightRequest) {
+        if (mode != Mode.THREADED) {
+            if (!tryAcquireInFlight()) {
+                return false;
             }
-        } else { // Ya! We can create a new fetcher
-            FetcherThread fetcherThread = new FetcherThread(fetcherThreadGroup, fetchRequest);
-            fetcherThread.start();
+            startInFlight(inFlightRequest);
+            return true;
+        }
+        if (fetcherCount.get() - busyFetcherCount.get() <= requestQueue.size()) { // No idle fetcher left for this request
+            startFetcher();
+        }
+        if (!requestQueue.offer(inFlightRequest)) {
+            return false;
+        }
+        ensureQueueServed();
+        return true;
+    }
+
+    /**
+     * Start a FetchRequest that has been counted in-flight in ASYNC or VIRTUAL mode.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     */
+    private void startInFlight(InFlightRequest inFlightRequest) {
+        if (mode == Mode.ASYNC) {
+            inFlightRequest.getFetchRequest().setExecuteStartTime(System.nanoTime());
+            asyncFetchEngine.submit(inFlightRequest);
+        } else {
+            startVirtualFetcher(inFlightRequest);
+        }
+    }
+
+    /**
+     * Called after queuing a FetchRequest. The last idle fetcher may have retired after the caller checked, seeing the queue empty. Either it sees the request now, or this does.
+     */
+    private void ensureQueueServed() {
+        if (fetcherCount.get() - busyFetcherCount.get() <= 0 && !requestQueue.isEmpty()) {
+            startFetcher();
         }
     }
 
     /**
-     * Abort an FetchRequest being executed.
+     * Abort an FetchRequest being executed. Its sender will not be called back.
+     * <p/>
+     * The FetchRequest is looked up in the in-flight registry, so this takes constant time wherever the request is.
      *
      * @param fetchRequest FetchRequest to be terminated.
      */
-    public void abortRequest(FetchRequest fetchRequest) {
-        Thread[] threads = new Thread[fetcherThreadGroup.activeCount()];
-        fetcherThreadGroup.enumerate(threads);
-        for (Thread thread : threads) {
-            if (thread instanceof FetcherThread) {
-                FetcherThread fetcherThread = (FetcherThread) thread;
-                if (fetcherThread.getFetchRequest() == fetchRequest) {
-                    fetcherThread.abortFetchRequest();
-                    return;
-                }
+    public void abortRequest(FetchRequest<?> fetchRequest) {
+        InFlightRequest inFlightRequest = inFlightRequests.remove(fetchRequest);
+        if (inFlightRequest != null) {
+            abort(inFlightRequest);
+        }
+    }
+
+    /**
+     * Abort every FetchRequest sent by a crawler and not yet reported back to it.
+     *
+     * @param sender The crawler whose FetchRequest will be terminated.
+     * @return The FetchRequest that have been aborted. The sender will not be called back for them.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<FetchRequest<T>> abortRequests(Crawler<T> sender) {
+        List<FetchRequest<T>> abortedFetchRequests = new ArrayList<FetchRequest<T>>();
+        for (Map.Entry<FetchRequest<?>, InFlightRequest> entry : inFlightRequests.entrySet()) {
+            if (entry.getKey().getSender() == sender && inFlightRequests.remove(entry.getKey(), entry.getValue())) {
+                abort(entry.getValue());
+                abortedFetchRequests.add((FetchRequest<T>) entry.getKey()); // Sent by sender, so it has its model type
             }
         }
+        return abortedFetchRequests;
+    }
+
+    /**
+     * Get the number of FetchRequest executed by this pool and not yet reported back to their senders.
+     *
+     * @return Current registered request number.
+     */
+    public int getRegisteredRequestCount() {
+        return inFlightRequests.size();
+    }
+
+    /**
+     * Abort an execution which has been removed from the in-flight registry.
+     *
+     * @param inFlightRequest Execution to abort.
+     */
+    private void abort(InFlightRequest inFlightRequest) {
+        inFlightRequest.cancel();
+        ScheduledFuture<?> delayedDispatch = inFlightRequest.getDelayedDispatch();
+        if (delayedDispatch != null && delayedDispatch.cancel(false)) { // Still held back by a rate limiter
+            delayedRequestCount.decrementAndGet();
+            delayedRequestPermits.release();
+        }
+        inFlightRequest.getFetchRequest().setState(FetchRequest.State.Failed);
     }
 
     /**
      * Set the maximum number of fetchers.
+     * <p/>
+     * Extra fetchers are released after finishing their current FetchRequest.
      *
      * @param maxFetcherNum The maximum number.
      */
@@ -137,6 +433,495 @@ public class FetcherPool {
         this.maxFetcherNum = maxFetcherNum;
         connectionManager.setDefaultMaxPerRoute(maxFetcherNum / 2 + 1);
         connectionManager.setMaxTotal(maxFetcherNum * 2 + 1);
+        inFlightLock.lock();
+        try {
+            inFlightRoomCondition.signalAll(); // The limit may have been raised
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    /**
+     * Get the maximum number of fetchers, which may have been adjusted by adaptive concurrency control.
+     *
+     * @return The maximum number.
+     */
+    public int getMaxFetcherNum() {
+        return maxFetcherNum;
+    }
+
+    /**
+     * Let maxFetcherNum follow the upstream instead of staying static.
+     * <p/>
+     * Starting from the current maxFetcherNum, it grows while latency stays flat and all fetchers are in use, and is cut when latency rises or failures spike.
+     * Worker number and HTTP connection limits follow it.
+     *
+     * @param minFetcherNum maxFetcherNum will never go below this.
+     * @param maxFetcherNum maxFetcherNum will never go above this.
+     */
+    public void enableAdaptiveConcurrency(int minFetcherNum, int maxFetcherNum) {
+        adaptiveLimiter = new AdaptiveConcurrencyLimiter(this.maxFetcherNum, minFetcherNum, maxFetcherNum);
+        setMaxFetcherNum(adaptiveLimiter.getLimit());
+    }
+
+    /**
+     * Keep maxFetcherNum at its current value.
+     */
+    public void disableAdaptiveConcurrency() {
+        adaptiveLimiter = null;
+    }
+
+    /**
+     * Limit the rate of FetchRequest sent to a host.
+     *
+     * @param host             Host name, e.g. "m.qzone.qq.com".
+     * @param permitsPerSecond Sustained rate, or 0 to remove the limit.
+     * @param burst            The maximum number of requests that can be sent at once after being idle.
+     */
+    public void setHostRateLimit(String host, double permitsPerSecond, int burst) {
+        if (permitsPerSecond > 0) {
+            hostRateLimiters.put(host, new TokenBucket(permitsPerSecond, burst));
+        } else {
+            hostRateLimiters.remove(host);
+        }
+    }
+
+    /**
+     * Limit the rate of FetchRequest of a type, no matter which host they go to.
+     *
+     * @param type             FetchRequest type as returned by FetchRequest.getType(), e.g. "MessageBoardFetchRequest".
+     * @param permitsPerSecond Sustained rate, or 0 to remove the limit.
+     * @param burst            The maximum number of requests that can be sent at once after being idle.
+     */
+    public void setTypeRateLimit(String type, double permitsPerSecond, int burst) {
+        if (permitsPerSecond > 0) {
+            typeRateLimiters.put(type, new TokenBucket(permitsPerSecond, burst));
+        } else {
+            typeRateLimiters.remove(type);
+        }
+    }
+
+    /**
+     * Get the number of FetchRequest currently held back by rate limiters.
+     *
+     * @return Current delayed request number.
+     */
+    public int getDelayedRequestCount() {
+        return delayedRequestCount.get();
+    }
+
+    /**
+     * Get the number of FetchRequest that have been held back by rate limiters.
+     *
+     * @return Total rate-limited request number.
+     */
+    public long getRateLimitedCount() {
+        return rateLimitedCount.get();
+    }
+
+    /**
+     * Get the total time FetchRequest have spent waiting on rate limiters.
+     *
+     * @return Total wait time in milliseconds.
+     */
+    public long getRateLimitWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(rateLimitWaitNanos.get());
+    }
+
+    /**
+     * Get transfer statistics of every host that has returned a successful response.
+     *
+     * @return A map from host name to its statistics.
+     */
+    public Map<String, TransferStats> getTransferStats() {
+        return Collections.<String, TransferStats>unmodifiableMap(transferStats);
+    }
+
+    /**
+     * Get the number of FetchRequest waiting for a free fetcher.
+     *
+     * @return Current queue depth.
+     */
+    public int getQueueDepth() {
+        return requestQueue.size();
+    }
+
+    /**
+     * Get the number of live fetchers.
+     *
+     * @return Current fetcher number.
+     */
+    public int getFetcherCount() {
+        return fetcherCount.get();
+    }
+
+    /**
+     * Get the number of fetchers executing a FetchRequest.
+     *
+     * @return Current busy fetcher number.
+     */
+    public int getBusyFetcherCount() {
+        return busyFetcherCount.get();
+    }
+
+    /**
+     * Check whether FetchRequest run on virtual threads, i.e. the pool is in VIRTUAL mode and the running JVM supports them.
+     *
+     * @return true if virtual threads are used, otherwise false.
+     */
+    public boolean isUsingVirtualThreads() {
+        return mode == Mode.VIRTUAL && VirtualThreads.isSupported();
+    }
+
+    /**
+     * Get the number of FetchRequest being executed or post-processed in ASYNC or VIRTUAL mode.
+     *
+     * @return Current in-flight request number.
+     */
+    public int getInFlightCount() {
+        inFlightLock.lock();
+        try {
+            return inFlightCount;
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    /**
+     * Take a permit from the rate limiters of a FetchRequest's host and type.
+     *
+     * @param fetchRequest FetchRequest to be executed.
+     * @return Nanoseconds the request has to wait before it can be executed.
+     */
+    private long reserveRatePermit(FetchRequest<?> fetchRequest) {
+        long delay = 0;
+        TokenBucket hostRateLimiter = hostRateLimiters.get(fetchRequest.getHttpRequest().getURI().getHost());
+        if (hostRateLimiter != null) {
+            delay = hostRateLimiter.reserve();
+        }
+        TokenBucket typeRateLimiter = typeRateLimiters.get(fetchRequest.getType());
+        if (typeRateLimiter != null) {
+            delay = Math.max(delay, typeRateLimiter.reserve());
+        }
+        return delay;
+    }
+
+    /**
+     * Hold a FetchRequest back until its rate limit permit can be used, without occupying a fetcher.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     * @param delay           Nanoseconds to wait.
+     * @throws InterruptedException
+     */
+    private void delayRequest(InFlightRequest inFlightRequest, long delay) throws InterruptedException {
+        delayedRequestPermits.acquire();
+        delayedRequestCount.incrementAndGet();
+        rateLimitedCount.incrementAndGet();
+        rateLimitWaitNanos.addAndGet(delay);
+        scheduleDelayedDispatch(inFlightRequest, delay);
+    }
+
+    /**
+     * Dispatch a delayed FetchRequest on rateLimitTimer after a delay.
+     * <p/>
+     * rateLimitTimer is shared by every delayed FetchRequest, so it never waits for room in the pool. If there is none, the FetchRequest is put back on the timer for DELAYED_DISPATCH_RETRY_MILLIS, still counted as delayed.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     * @param delay           Nanoseconds to wait.
+     */
+    private void scheduleDelayedDispatch(final InFlightRequest inFlightRequest, long delay) {
+        inFlightRequest.setDelayedDispatch(rateLimitTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!inFlightRequest.isCancelled() && !tryDispatchRequest(inFlightRequest)) {
+                    scheduleDelayedDispatch(inFlightRequest, TimeUnit.MILLISECONDS.toNanos(DELAYED_DISPATCH_RETRY_MILLIS));
+                    return;
+                }
+                // Dispatched, or aborted before its dispatch could be cancelled
+                delayedRequestCount.decrementAndGet();
+                delayedRequestPermits.release();
+            }
+        }, delay, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Wait until there are less than maxFetcherNum in-flight FetchRequest, then count a new one in.
+     *
+     * @throws InterruptedException
+     */
+    private void acquireInFlight() throws InterruptedException {
+        inFlightLock.lock();
+        try {
+            while (inFlightCount >= maxFetcherNum) {
+                inFlightRoomCondition.await();
+            }
+            ++inFlightCount;
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    /**
+     * Count a new in-flight FetchRequest in if there are less than maxFetcherNum, without waiting.
+     *
+     * @return true if counted in, otherwise false.
+     */
+    private boolean tryAcquireInFlight() {
+        inFlightLock.lock();
+        try {
+            if (inFlightCount >= maxFetcherNum) {
+                return false;
+            }
+            ++inFlightCount;
+            return true;
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    /**
+     * Count a finished in-flight FetchRequest out.
+     */
+    private void releaseInFlight() {
+        inFlightLock.lock();
+        try {
+            --inFlightCount;
+            inFlightRoomCondition.signal(); // Notify the pool there is room for another request
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    /**
+     * Execute a FetchRequest with the blocking http client on the current thread.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     * @param httpContext     Http context to execute in.
+     * @return Fetch result (HTTP Body), or null if request failed.
+     */
+    private FetchResponse fetch(InFlightRequest inFlightRequest, HttpContext httpContext) {
+        FetchRequest<?> fetchRequest = inFlightRequest.getFetchRequest();
+        FetchResponse fetchResponse = null;
+        fetchRequest.setExecuteStartTime(System.nanoTime());
+        fetchRequest.getHttpRequest().setHeader("Accept-Encoding", ContentEncoding.ACCEPT_ENCODING);
+        try {
+            CloseableHttpResponse response = httpClient.execute(fetchRequest.getHttpRequest(), httpContext);
+            try {
+                fetchResponse = readResponse(response);
+            } finally {
+                response.close();
+            }
+        } catch (Exception ignored) {
+        }
+        fetchRequest.setState(fetchResponse != null ? FetchRequest.State.Successful : FetchRequest.State.Failed);
+        recordSample(inFlightRequest);
+        return fetchResponse;
+    }
+
+    /**
+     * Read a response body into a pooled buffer, without decoding it into a String.
+     * <p/>
+     * A compressed body is decompressed while it is read.
+     *
+     * @param response Response returned by the http client.
+     * @return Fetch result (HTTP Body), or null if the status code is not 2xx.
+     * @throws IOException
+     */
+    private FetchResponse readResponse(CloseableHttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (response.getStatusLine().getStatusCode() >= 300) { // Same as BasicResponseHandler
+            EntityUtils.consume(entity);
+            return null;
+        }
+        if (entity == null) {
+            return new FetchResponse(0);
+        }
+        Header contentEncoding = entity.getContentEncoding();
+        long contentLength = entity.getContentLength();
+        int initialCapacity = contentLength > 0 && contentLength < Integer.MAX_VALUE / 4 ? (int) contentLength : 0;
+        FetchResponse fetchResponse = new FetchResponse(contentEncoding != null ? initialCapacity * 4 : initialCapacity);
+        Charset charset = ContentType.getOrDefault(entity).getCharset();
+        if (charset != null) {
+            fetchResponse.setCharset(charset);
+        }
+        InputStream content = entity.getContent();
+        InputStream decodedContent = null;
+        try {
+            ContentEncoding.CountingInputStream countingContent = new ContentEncoding.CountingInputStream(content);
+            decodedContent = ContentEncoding.decode(countingContent, contentEncoding != null ? contentEncoding.getValue() : null);
+            fetchResponse.readFrom(decodedContent);
+            fetchResponse.setEncodedLength(countingContent.getCount());
+        } catch (IOException e) {
+            fetchResponse.release();
+            throw e;
+        } finally {
+            if (decodedContent != null) {
+                decodedContent.close(); // Frees the decompressor
+            }
+            content.close();
+        }
+        return fetchResponse;
+    }
+
+    /**
+     * Feed the latency and result of an executed FetchRequest to adaptive concurrency control.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     */
+    private void recordSample(InFlightRequest inFlightRequest) {
+        AdaptiveConcurrencyLimiter adaptiveLimiter = this.adaptiveLimiter;
+        if (adaptiveLimiter == null || inFlightRequest.isCancelled()) {
+            return;
+        }
+        FetchRequest<?> fetchRequest = inFlightRequest.getFetchRequest();
+        int concurrency = mode == Mode.THREADED ? busyFetcherCount.get() : getInFlightCount();
+        int newLimit = adaptiveLimiter.onSample(System.nanoTime() - fetchRequest.getExecuteStartTime(), fetchRequest.getState() == FetchRequest.State.Successful, concurrency);
+        if (newLimit != -1) {
+            setMaxFetcherNum(newLimit);
+        }
+    }
+
+    /**
+     * Report an executed FetchRequest to its sender, unless it has been aborted. The response buffer is released afterwards.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     * @param response        Fetch result (HTTP Body), or null if request failed.
+     */
+    private void postExecute(InFlightRequest inFlightRequest, FetchResponse response) {
+        FetchRequest<?> fetchRequest = inFlightRequest.getFetchRequest();
+        if (response != null) {
+            recordTransfer(fetchRequest, response);
+        }
+        try {
+            if (inFlightRequests.remove(fetchRequest, inFlightRequest)) { // Otherwise it has been taken back by whoever aborted it
+                report(fetchRequest, response);
+            }
+        } finally {
+            if (response != null) {
+                response.release();
+            }
+        }
+    }
+
+    /**
+     * Call the sender of a FetchRequest back.
+     *
+     * @param fetchRequest FetchRequest that has been executed.
+     * @param response     Fetch result (HTTP Body), or null if request failed.
+     */
+    private static <T> void report(FetchRequest<T> fetchRequest, FetchResponse response) {
+        fetchRequest.getSender().onFetchRequestPostExecution(fetchRequest, response);
+    }
+
+    /**
+     * Count the transferred and decoded body bytes of a response towards its host.
+     *
+     * @param fetchRequest FetchRequest that has been executed.
+     * @param response     Its response.
+     */
+    private void recordTransfer(FetchRequest<?> fetchRequest, FetchResponse response) {
+        String host = fetchRequest.getHttpRequest().getURI().getHost();
+        TransferStats stats = transferStats.get(host);
+        if (stats == null) {
+            transferStats.putIfAbsent(host, new TransferStats());
+            stats = transferStats.get(host);
+        }
+        stats.responseCount.incrementAndGet();
+        stats.encodedBytes.addAndGet(response.getEncodedLength());
+        stats.decodedBytes.addAndGet(response.getLength());
+    }
+
+    /**
+     * Create a thread for long-running work related to this pool, such as a crawler's working thread.
+     * <p/>
+     * In VIRTUAL mode this is a virtual thread, otherwise a platform thread.
+     *
+     * @param task The task the thread will run.
+     * @return A new unstarted thread.
+     */
+    Thread newThread(Runnable task) {
+        return mode == Mode.VIRTUAL ? VirtualThreads.newThread(task) : new Thread(task);
+    }
+
+    /**
+     * Execute a FetchRequest, including its post-processing, on a new virtual thread.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     */
+    private void startVirtualFetcher(final InFlightRequest inFlightRequest) {
+        VirtualThreads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!inFlightRequest.isCancelled()) {
+                        postExecute(inFlightRequest, fetch(inFlightRequest, new BasicHttpContext()));
+                    }
+                } finally {
+                    releaseInFlight();
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Called on an I/O thread when the async fetch engine has executed a FetchRequest.
+     * <p/>
+     * Post-processing may touch the storage, so it is moved to callbackExecutor.
+     *
+     * @param inFlightRequest Execution of a FetchRequest.
+     * @param response        Fetch result (HTTP Body), or null if request failed.
+     */
+    private void onAsyncFetchFinished(final InFlightRequest inFlightRequest, final FetchResponse response) {
+        inFlightRequest.getFetchRequest().setState(response != null ? FetchRequest.State.Successful : FetchRequest.State.Failed);
+        recordSample(inFlightRequest);
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    postExecute(inFlightRequest, response);
+                } finally {
+                    releaseInFlight();
+                }
+            }
+        });
+    }
+
+    /**
+     * Start a new fetcher if maxFetcherNum is not reached.
+     */
+    private void startFetcher() {
+        if (reserveFetcher()) {
+            new FetcherThread(fetcherThreadGroup).start();
+        }
+    }
+
+    /**
+     * Take a slot for a new fetcher.
+     *
+     * @return true if the slot is taken, or false if maxFetcherNum is reached.
+     */
+    private boolean reserveFetcher() {
+        while (true) {
+            int count = fetcherCount.get();
+            if (count >= maxFetcherNum) {
+                return false;
+            }
+            if (fetcherCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give up the slot of a fetcher which is about to exit.
+     * <p/>
+     * The queue is checked after the slot is given up, which pairs with ensureQueueServed() checking fetchers after queuing, so that no request is left without a fetcher.
+     *
+     * @return true if the fetcher should exit, or false if it should keep working because new FetchRequest arrived meanwhile.
+     */
+    private boolean retireFetcher() {
+        fetcherCount.decrementAndGet();
+        return requestQueue.isEmpty() || !reserveFetcher();
     }
 
     /**
@@ -144,81 +929,107 @@ public class FetcherPool {
      */
     private class FetcherThread extends Thread {
 
-        private FetchRequest fetchRequest;
         private HttpContext httpContext = new BasicHttpContext();
 
-        public FetcherThread(ThreadGroup group, FetchRequest fetchRequest) {
+        public FetcherThread(ThreadGroup group) {
             super(group, (Runnable) null);
-            this.fetchRequest = fetchRequest;
         }
 
         @Override
         public void run() {
-            int cycleTick = 0;
-            while (fetchRequest != null || cycleTick < 5) {
-                if (fetchRequest == null) {
-                    try {
-                        Thread.sleep(1000);
-                        ++cycleTick;
-                    } catch (InterruptedException e) { // Interrupted because of a new FetchRequest
-                        Thread.interrupted(); // Clear interrupted status
+            while (true) {
+                InFlightRequest inFlightRequest;
+                try {
+                    inFlightRequest = requestQueue.poll(FETCHER_IDLE_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    fetcherCount.decrementAndGet();
+                    return;
+                }
+                if (inFlightRequest == null) { // Free for too long
+                    if (retireFetcher()) {
+                        return;
                     }
                     continue;
                 }
-                cycleTick = 0;
-                String responseString = null;
-                try {
-                    CloseableHttpResponse response = httpClient.execute(fetchRequest.getHttpRequest(), httpContext);
-                    responseString = new BasicResponseHandler().handleResponse(response);
-                    fetchRequest.setState(FetchRequest.State.Successful);
-                } catch (Exception e) {
-                    fetchRequest.setState(FetchRequest.State.Failed);
+                if (inFlightRequest.isCancelled()) { // Aborted while waiting in the queue
+                    continue;
                 }
-                fetchRequest.getSender().onFetchRequestPostExecution(fetchRequest, responseString);
-                fetchRequest = null;
-                synchronized (freeFetcherMonitor) {
-                    freeFetcherMonitor.notify(); // Notify the pool I am free
+
+                busyFetcherCount.incrementAndGet();
+                postExecute(inFlightRequest, fetch(inFlightRequest, httpContext));
+                busyFetcherCount.decrementAndGet();
+
+                if (fetcherCount.get() > maxFetcherNum && retireFetcher()) { // maxFetcherNum has been lowered
+                    return;
                 }
             }
         }
+    }
 
-        /**
-         * Abort current FetchRequest.
-         */
-        public void abortFetchRequest() {
-            if (fetchRequest != null) {
-                fetchRequest.getHttpRequest().abort();
-                fetchRequest.setState(FetchRequest.State.Failed);
-                fetchRequest = null;
-            }
+    /**
+     * Response body sizes of a host, as transferred and after content decoding.
+     */
+    public static class TransferStats {
+
+        private final AtomicLong responseCount = new AtomicLong();
+        private final AtomicLong encodedBytes = new AtomicLong();
+        private final AtomicLong decodedBytes = new AtomicLong();
+
+        public long getResponseCount() {
+            return responseCount.get();
         }
 
         /**
-         * Get the current FetchRequest.
+         * Get the number of body bytes transferred, compressed or not.
          *
-         * @return Current FetchRequest.
+         * @return Transferred bytes.
          */
-        public FetchRequest getFetchRequest() {
-            return fetchRequest;
+        public long getEncodedBytes() {
+            return encodedBytes.get();
         }
 
         /**
-         * Give the fetcher a new FetchRequest.
+         * Get the number of body bytes after decompression.
          *
-         * @param fetchRequest FetchRequest to give.
+         * @return Decoded bytes.
          */
-        public void setFetchRequest(FetchRequest fetchRequest) {
-            this.fetchRequest = fetchRequest;
-            interrupt();
+        public long getDecodedBytes() {
+            return decodedBytes.get();
         }
 
         /**
-         * Return whether the fetcher is busy (has a pending FetchRequest).
+         * Get the ratio of bytes saved by compression.
          *
-         * @return true if it is busy, otherwise false.
+         * @return 1 - encoded / decoded, or 0 if nothing has been received.
          */
-        public boolean isBusy() {
-            return fetchRequest != null;
+        public double getSavedRatio() {
+            long decoded = decodedBytes.get();
+            return decoded == 0 ? 0 : 1 - (double) encodedBytes.get() / decoded;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d responses, %d bytes transferred, %d bytes decoded (%.1f%% saved)", getResponseCount(), getEncodedBytes(), getDecodedBytes(), getSavedRatio() * 100);
         }
     }
+
+    /**
+     * Ways a FetcherPool can execute FetchRequest.
+     */
+    public enum Mode {
+        /**
+         * Each in-flight FetchRequest occupies a fetcher thread doing blocking I/O.
+         */
+        THREADED,
+        /**
+         * FetchRequest are multiplexed on a few I/O threads with non-blocking I/O.
+         */
+        ASYNC,
+        /**
+         * Each FetchRequest runs blocking I/O on its own virtual thread. Falls back to platform threads before Java 21, see isUsingVirtualThreads().
+         * <p/>
+         * The crawler and the pool wait on locks rather than monitors, so their virtual threads never pin a carrier thread. The storages still guard their state with monitors, so before Java 24 a virtual thread blocked inside one, e.g. on JDBC or a file write, pins its carrier thread. Storage writes run on the threads of the persist stage of the crawler, so no more carrier threads than that are pinned at once.
+         */
+        VIRTUAL,
+    }
 }
@@ -0,0 +1,61 @@
+package core.crawler;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/16/14.
+ */
+class InFlightRequest {
+
+    /**
+     * The FetchRequest being executed.
+     */
+    private final FetchRequest<?> fetchRequest;
+
+    /**
+     * Whether this execution has been aborted.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Pending dispatch if the FetchRequest is held back by a rate limiter, otherwise null.
+     */
+    private volatile ScheduledFuture<?> delayedDispatch;
+
+    /**
+     * Create a handle for one execution of a FetchRequest.
+     *
+     * @param fetchRequest The FetchRequest to be executed.
+     */
+    public InFlightRequest(FetchRequest<?> fetchRequest) {
+        this.fetchRequest = fetchRequest;
+    }
+
+    public FetchRequest<?> getFetchRequest() {
+        return fetchRequest;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public ScheduledFuture<?> getDelayedDispatch() {
+        return delayedDispatch;
+    }
+
+    public void setDelayedDispatch(ScheduledFuture<?> delayedDispatch) {
+        this.delayedDispatch = delayedDispatch;
+    }
+
+    /**
+     * Abort this execution wherever it is: waiting for a fetcher, or on the wire.
+     * <p/>
+     * Whoever executes the http request has registered itself as its cancellable, so aborting the http request stops the I/O.
+     */
+    public void cancel() {
+        cancelled = true;
+        fetchRequest.getHttpRequest().abort();
+    }
+}
@@ -0,0 +1,161 @@
+package core.crawler;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/22/14.
+ * <p/>
+ * Pulls UINs out of a JSON response token by token, without building a tree of it.
+ * <p/>
+ * An extractor is made for a path of object members leading to an array of objects, e.g. data.commentList, and a member of those objects holding the UIN. Everything else is skipped, and reading stops at the end of the array.
+ */
+public class JsonUinExtractor {
+
+    /**
+     * UINs of the users who left messages: data.commentList[*].uin.
+     */
+    public static final JsonUinExtractor MESSAGE_BOARD = new JsonUinExtractor("uin", "data", "commentList");
+
+    /**
+     * UINs of the recent visitors: data.items[*].uin.
+     */
+    public static final JsonUinExtractor RECENT_VISITORS = new JsonUinExtractor("uin", "data", "items");
+
+    /**
+     * Member names leading from the root object to the array.
+     */
+    private final String[] path;
+
+    /**
+     * Member of the array elements holding the UIN.
+     */
+    private final String uinName;
+
+    /**
+     * Create an extractor.
+     *
+     * @param uinName Member of the array elements holding the UIN.
+     * @param path    Member names leading from the root object to the array.
+     */
+    public JsonUinExtractor(String uinName, String... path) {
+        if (path.length == 0) {
+            throw new IllegalArgumentException("Empty path");
+        }
+        this.uinName = uinName;
+        this.path = path;
+    }
+
+    /**
+     * Extract UINs from a response body in a charset.
+     *
+     * @param inputStream Response body. Not closed.
+     * @param charset     Charset of the body.
+     * @param handler     Receives each UIN.
+     * @return Number of UINs found.
+     * @throws IOException If the response is not the expected JSON. UINs before the error have been handled.
+     */
+    public int extract(InputStream inputStream, Charset charset, UinHandler handler) throws IOException {
+        return extract(new InputStreamReader(inputStream, charset), handler);
+    }
+
+    /**
+     * Extract UINs from a response, which may be wrapped in a JSONP callback, e.g. _Callback({...});
+     *
+     * @param reader  Response characters. Not closed.
+     * @param handler Receives each UIN.
+     * @return Number of UINs found, 0 if the path is not in the response.
+     * @throws IOException If the response is not the expected JSON. UINs before the error have been handled.
+     */
+    public int extract(Reader reader, UinHandler handler) throws IOException {
+        JsonReader jsonReader = new JsonReader(skipCallback(reader));
+        jsonReader.setLenient(true); // Tolerates what QZone sometimes sends, and anything after the value, e.g. ");"
+        if (jsonReader.peek() != JsonToken.BEGIN_OBJECT) {
+            return 0;
+        }
+        return extract(jsonReader, 0, handler);
+    }
+
+    /**
+     * Walk down the path from an object.
+     *
+     * @param depth Index in path of the member to look for in this object.
+     * @return Number of UINs found, 0 if the path is not in this object.
+     */
+    private int extract(JsonReader jsonReader, int depth, UinHandler handler) throws IOException {
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            if (!jsonReader.nextName().equals(path[depth])) {
+                jsonReader.skipValue();
+            } else if (depth == path.length - 1) {
+                if (jsonReader.peek() != JsonToken.BEGIN_ARRAY) {
+                    return 0;
+                }
+                return extractArray(jsonReader, handler); // Nothing after it is needed
+            } else if (jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
+                return extract(jsonReader, depth + 1, handler);
+            } else {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private int extractArray(JsonReader jsonReader, UinHandler handler) throws IOException {
+        int count = 0;
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+            if (jsonReader.peek() != JsonToken.BEGIN_OBJECT) {
+                jsonReader.skipValue();
+                continue;
+            }
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                if (jsonReader.nextName().equals(uinName) && (jsonReader.peek() == JsonToken.NUMBER || jsonReader.peek() == JsonToken.STRING)) {
+                    try {
+                        handler.onUin(Long.parseLong(jsonReader.nextString())); // Some endpoints quote numbers
+                        ++count;
+                    } catch (NumberFormatException ignored) {
+                    }
+                } else {
+                    jsonReader.skipValue();
+                }
+            }
+            jsonReader.endObject();
+        }
+        jsonReader.endArray();
+        return count;
+    }
+
+    /**
+     * Skip a JSONP callback name and its opening parenthesis, if the response has one.
+     *
+     * @param reader Response characters.
+     * @return A reader starting at the JSON value.
+     * @throws IOException
+     */
+    private static Reader skipCallback(Reader reader) throws IOException {
+        PushbackReader pushbackReader = new PushbackReader(reader);
+        int c;
+        do {
+            c = pushbackReader.read();
+        } while (c == '\uFEFF' || Character.isWhitespace(c)); // BOM
+        if (c != '{' && c != '[') {
+            while (c != -1 && c != '(') {
+                c = pushbackReader.read();
+            }
+            return pushbackReader;
+        }
+        pushbackReader.unread(c);
+        return pushbackReader;
+    }
+}
@@ -0,0 +1,357 @@
+package core.crawler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/23/14.
+ * <p/>
+ * A step of the crawl after fetching, e.g. parsing responses or writing to storage, run by its own threads from a bounded queue.
+ * <p/>
+ * put() blocks while the queue is full, which holds back whoever feeds the stage.
+ */
+public class PipelineStage<E> {
+
+    /**
+     * Processes the elements of a stage.
+     */
+    public interface Worker<E> {
+
+        /**
+         * Process one element. Called from the threads of the stage, or from the caller of put() once the stage is stopped.
+         *
+         * @param element The element.
+         */
+        public void process(E element);
+    }
+
+    private final String name;
+
+    private final int threadCount;
+
+    private final Worker<E> worker;
+
+    private final BlockingQueue<Task<E>> queue;
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    private volatile boolean stopped;
+
+    /**
+     * Put once for every thread by stop(), after the elements left in the queue. A thread quits when it takes one.
+     */
+    private final Task<E> poisonPill = new Task<E>(null);
+
+    /**
+     * Guards the conditions below.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when a thread of the stage becomes idle.
+     */
+    private final Condition idleCondition = lock.newCondition();
+
+    /**
+     * Signalled when a thread of the stage takes an element, which frees space in the queue.
+     */
+    private final Condition spaceCondition = lock.newCondition();
+
+    private final AtomicInteger busyThreadCount = new AtomicInteger();
+
+    /**
+     * Number of elements put but not processed yet, whether queued, just taken by a thread or being processed.
+     */
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final AtomicLong completedCount = new AtomicLong();
+
+    private final AtomicLong errorCount = new AtomicLong();
+
+    /**
+     * Time spent by completed elements in the queue, in nanoseconds.
+     */
+    private final AtomicLong totalQueueTime = new AtomicLong();
+
+    /**
+     * Time spent processing completed elements, in nanoseconds.
+     */
+    private final AtomicLong totalProcessTime = new AtomicLong();
+
+    /**
+     * Time spent by callers of put() waiting for queue space, in nanoseconds.
+     */
+    private final AtomicLong totalBlockedTime = new AtomicLong();
+
+    /**
+     * Create a stage. It does nothing until started.
+     *
+     * @param name          Name of the stage, used for its threads.
+     * @param threadCount   Number of threads processing elements.
+     * @param queueCapacity Number of elements that may wait in the queue.
+     * @param worker        Processes the elements.
+     */
+    public PipelineStage(String name, int threadCount, int queueCapacity, Worker<E> worker) {
+        this.name = name;
+        this.threadCount = threadCount;
+        this.worker = worker;
+        queue = new ArrayBlockingQueue<Task<E>>(queueCapacity);
+    }
+
+    /**
+     * Start the threads of the stage.
+     *
+     * @param fetcherPool Creates the threads, so that they are of the same kind as the fetchers.
+     */
+    public void start(FetcherPool fetcherPool) {
+        for (int i = 0; i < threadCount; ++i) {
+            Thread thread = fetcherPool.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        Task<E> task;
+                        try {
+                            task = queue.take();
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                        signalAll(spaceCondition);
+                        if (task == poisonPill) {
+                            break;
+                        }
+                        busyThreadCount.incrementAndGet();
+                        try {
+                            process(task);
+                        } finally {
+                            busyThreadCount.decrementAndGet();
+                            pendingCount.decrementAndGet();
+                        }
+                        signalAll(idleCondition);
+                    }
+                }
+            });
+            thread.setName(name + "StageThread-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hand an element to the stage, waiting for queue space if needed. Once the stage is stopped, the element is processed by the caller.
+     *
+     * @param element The element.
+     * @throws InterruptedException If interrupted while waiting. The element has not been handed over.
+     */
+    public void put(E element) throws InterruptedException {
+        Task<E> task = new Task<E>(element);
+        if (stopped) {
+            process(task);
+            return;
+        }
+        pendingCount.incrementAndGet();
+        if (!queue.offer(task)) {
+            long startTime = System.nanoTime();
+            try {
+                queue.put(task);
+            } catch (InterruptedException e) {
+                pendingCount.decrementAndGet();
+                throw e;
+            }
+            totalBlockedTime.addAndGet(System.nanoTime() - startTime);
+        }
+        if (stopped && queue.remove(task)) { // Stopped meanwhile, so no thread may take it
+            process(task);
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    private void signalAll(Condition condition) {
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check whether put() would block.
+     *
+     * @return true if the queue is full, otherwise false.
+     */
+    public boolean isFull() {
+        return queue.remainingCapacity() == 0;
+    }
+
+    /**
+     * Wait until put() wouldn't block, i.e. the queue has space.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitNotFull() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!stopped && isFull()) {
+                spaceCondition.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the queue is empty and no element is being processed.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitIdle() throws InterruptedException {
+        lock.lock();
+        try {
+            while (pendingCount.get() > 0) {
+                idleCondition.await(100, TimeUnit.MILLISECONDS); // Also woken up by nothing if elements are processed by callers
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the threads of the stage once they have processed the elements left in the queue. Elements put meanwhile are processed by the calling thread.
+     * <p/>
+     * Threads are not interrupted, as an interrupt in the middle of a storage write may lose it, or close the files of the storage.
+     *
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        signalAll(spaceCondition);
+        for (int i = 0; i < threads.size(); ++i) {
+            queue.put(poisonPill); // Behind the elements left, so that they are processed first
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        threads.clear();
+        Task<E> task;
+        while ((task = queue.poll()) != null) {
+            process(task);
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    private void process(Task<E> task) {
+        long startTime = System.nanoTime();
+        try {
+            worker.process(task.element);
+        } catch (RuntimeException e) {
+            errorCount.incrementAndGet();
+            e.printStackTrace();
+        }
+        long endTime = System.nanoTime();
+        totalQueueTime.addAndGet(startTime - task.putTime);
+        totalProcessTime.addAndGet(endTime - startTime);
+        completedCount.incrementAndGet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the number of elements waiting in the queue.
+     *
+     * @return Queued element number.
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    /**
+     * Get the number of elements being processed.
+     *
+     * @return Busy thread number.
+     */
+    public int getBusyThreadCount() {
+        return busyThreadCount.get();
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * Get the number of elements whose processing threw.
+     *
+     * @return Error number.
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * Get the average time completed elements waited in the queue.
+     *
+     * @return Average queue latency, in milliseconds.
+     */
+    public double getAverageQueueLatency() {
+        long completed = completedCount.get();
+        return completed == 0 ? 0 : totalQueueTime.get() / 1e6 / completed;
+    }
+
+    /**
+     * Get the average time spent processing an element.
+     *
+     * @return Average processing latency, in milliseconds.
+     */
+    public double getAverageProcessLatency() {
+        long completed = completedCount.get();
+        return completed == 0 ? 0 : totalProcessTime.get() / 1e6 / completed;
+    }
+
+    /**
+     * Get the total time callers of put() were held back because the queue was full.
+     *
+     * @return Blocked time, in milliseconds.
+     */
+    public long getBlockedTime() {
+        return TimeUnit.NANOSECONDS.toMillis(totalBlockedTime.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d/%d queued, %d busy, %d completed (%d errors), %.2f ms queued, %.2f ms processing, %d ms blocked",
+                name, getQueuedCount(), getQueueCapacity(), getBusyThreadCount(), getCompletedCount(), getErrorCount(),
+                getAverageQueueLatency(), getAverageProcessLatency(), getBlockedTime());
+    }
+
+    /**
+     * An element in the queue.
+     */
+    private static class Task<E> {
+
+        private final E element;
+
+        /**
+         * When it was put, in System.nanoTime().
+         */
+        private final long putTime = System.nanoTime();
+
+        public Task(E element) {
+            this.element = element;
+        }
+    }
+}
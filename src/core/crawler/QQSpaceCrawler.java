@@ -1,18 +1,15 @@
 package core.crawler;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
 import core.model.QQUserRaw;
-import core.storage.QQUserRawStorage;
+import core.storage.QQUserStorage;
+import core.storage.UinFrontier;
+import core.storage.UserCursor;
 import org.apache.http.HttpRequest;
 import org.apache.http.client.methods.HttpGet;
-import org.jdom2.Document;
-import org.jdom2.Element;
-import org.jdom2.input.SAXBuilder;
 
-import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -22,6 +19,8 @@ import java.util.List;
  */
 public class QQSpaceCrawler extends Crawler<QQUserRaw> {
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     /**
      * uin in auth cookie.
      */
@@ -32,6 +31,11 @@ public class QQSpaceCrawler extends Crawler<QQUserRaw> {
      */
     private String skey;
 
+    /**
+     * New users waiting to be crawled, by their depth from the logged in user. Null to crawl users in storage order only.
+     */
+    private UinFrontier frontier;
+
     /**
      * Create a new crawler for QQ Space.
      *
@@ -40,7 +44,7 @@ public class QQSpaceCrawler extends Crawler<QQUserRaw> {
      * @param uin uin in auth cookie.
      * @param skey skey in auth cookie.
      */
-    public QQSpaceCrawler(FetcherPool fetcherPool, QQUserRawStorage userStorage, long uin, String skey) {
+    public QQSpaceCrawler(FetcherPool fetcherPool, QQUserStorage userStorage, long uin, String skey) {
         super(fetcherPool, userStorage);
         this.uin = uin;
         this.skey = skey;
@@ -62,35 +66,52 @@ public class QQSpaceCrawler extends Crawler<QQUserRaw> {
         return Integer.toString(hash & 0x7fffffff);
     }
 
+    /**
+     * Crawl new users by priority, nearest to the logged in user first, before walking the storage. Should be called before the crawler is started.
+     * <p/>
+     * Users found by the crawler are offered to the frontier in the priority class of their depth, so that the logged in user's friends are in class 1, their friends in class 2, and so on. The storage is walked once the frontier is empty, which crawls users found before the frontier was set and fetches what is missing for users already crawled.
+     *
+     * @param frontier An empty frontier. Depths beyond its lowest class share the lowest class.
+     */
+    public void setFrontier(UinFrontier frontier) {
+        this.frontier = frontier;
+    }
+
+    @Override
+    protected UserCursor<QQUserRaw> openUserCursor(long position) {
+        UserCursor<QQUserRaw> storageCursor = super.openUserCursor(position);
+        return frontier == null ? storageCursor : new FrontierCursor(storageCursor);
+    }
+
     @Override
-    protected List<FetchRequest> generateFetchRequest(QQUserRaw user) {
-        List<FetchRequest> fetchRequests = new ArrayList<FetchRequest>();
+    protected List<FetchRequest<QQUserRaw>> generateFetchRequest(QQUserRaw user) {
+        List<FetchRequest<QQUserRaw>> fetchRequests = new ArrayList<FetchRequest<QQUserRaw>>();
 
         // If he is the logged in user
         if (user.getUin() == uin) {
-            if (user.getRecentVisitorsDetail() == null) {
+            if (!user.isFetched(QQUserRaw.RECENT_VISITORS_DETAIL)) {
                 fetchRequests.add(new RecentVisitorsDetailFetchRequest(user));
             }
-            if (user.getFriends() == null) {
+            if (!user.isFetched(QQUserRaw.FRIENDS)) {
                 fetchRequests.add(new FriendsFetchRequest(user));
             }
         }
 
         // For any user
-//        if (user.getPersonalInfo() == null) {
+//        if (!user.isFetched(QQUserRaw.PERSONAL_INFO)) {
 //            fetchRequests.add(new PersonalInfoFetchRequest(user));
 //        }
 
         // If QQ Space is not private
-        if (user.getPersonalInfoDetail() == null) {
+        if (!user.isFetched(QQUserRaw.PERSONAL_INFO_DETAIL)) {
             fetchRequests.add(new PersonalInfoDetailFetchRequest(user));
         }
-        if (user.getMessageBoard() == null) {
+        if (!user.isFetched(QQUserRaw.MESSAGE_BOARD)) {
             fetchRequests.add(new MessageBoardFetchRequest(user));
         }
 
         // If he is a friend of the logged in user
-//        if (user.getRecentVisitors() == null) {
+//        if (!user.isFetched(QQUserRaw.RECENT_VISITORS)) {
 //            fetchRequests.add(new RecentVisitorsFetchRequest(user));
 //        }
 
@@ -98,81 +119,52 @@ public class QQSpaceCrawler extends Crawler<QQUserRaw> {
     }
 
     @Override
-    protected void onFetchRequestPostExecutionImpl(FetchRequest fetchRequest, String content) {
-        int newUserCount = 0;
-        String newUserSource = "";
-        QQUserRawStorage userStorage = (QQUserRawStorage) getUserStorage();
+    protected void onFetchRequestPostExecutionImpl(FetchRequest<QQUserRaw> fetchRequest, FetchResponse response) {
+        QQUserRaw user = fetchRequest.getRelatedModel();
+        UserWrite userWrite = new UserWrite(user);
+        byte[] content = response.toByteArray(UTF_8); // Raw response is stored as is, without building a String
         if (fetchRequest instanceof PersonalInfoFetchRequest) {
-            QQUserRaw user = ((PersonalInfoFetchRequest) fetchRequest).getRelatedModel();
-            user.setPersonalInfo(content);
-            userStorage.update(user);
+            user.setPayloadBytes(QQUserRaw.PERSONAL_INFO, content);
 //            System.out.println(String.format("[%d] Personal info updated.", user.getUin()));
         } else if (fetchRequest instanceof PersonalInfoDetailFetchRequest) {
-            QQUserRaw user = ((PersonalInfoDetailFetchRequest) fetchRequest).getRelatedModel();
-            user.setPersonalInfoDetail(content);
-            userStorage.update(user);
+            user.setPayloadBytes(QQUserRaw.PERSONAL_INFO_DETAIL, content);
 //            System.out.println(String.format("[%d] Personal info detail updated.", user.getUin()));
         } else if (fetchRequest instanceof MessageBoardFetchRequest) {
-            QQUserRaw user = ((MessageBoardFetchRequest) fetchRequest).getRelatedModel();
-            user.setMessageBoard(content);
-            userStorage.update(user);
+            user.setPayloadBytes(QQUserRaw.MESSAGE_BOARD, content);
 //            System.out.println(String.format("[%d] Message board updated.", user.getUin()));
-            newUserSource = "Message Board";
+            userWrite.newUserSource = "Message Board";
             try {
-                JsonElement root = new JsonParser().parse(content);
-                JsonArray jsonUserArray = root.getAsJsonObject().get("data").getAsJsonObject().get("commentList").getAsJsonArray();
-                for (JsonElement jsonUser : jsonUserArray) {
-                    long uin = jsonUser.getAsJsonObject().get("uin").getAsLong();
-                    if (userStorage.insertIfNotExisted(uin))
-                        ++newUserCount;
-                }
+                JsonUinExtractor.MESSAGE_BOARD.extract(response.getReader(), userWrite);
             } catch (Exception ignored) {
             }
         } else if (fetchRequest instanceof RecentVisitorsFetchRequest) {
-            QQUserRaw user = ((RecentVisitorsFetchRequest) fetchRequest).getRelatedModel();
-            user.setRecentVisitors(content);
-            userStorage.update(user);
+            user.setPayloadBytes(QQUserRaw.RECENT_VISITORS, content);
 //            System.out.println(String.format("[%d] Recent visitors updated.", user.getUin()));
-            newUserSource = "Recent Visitors";
+            userWrite.newUserSource = "Recent Visitors";
             try {
-                JsonElement root = new JsonParser().parse(content);
-                JsonArray jsonUserArray = root.getAsJsonObject().get("data").getAsJsonObject().get("items").getAsJsonArray();
-                for (JsonElement jsonUser : jsonUserArray) {
-                    long uin = jsonUser.getAsJsonObject().get("uin").getAsLong();
-                    if (userStorage.insertIfNotExisted(uin))
-                        ++newUserCount;
-                }
+                JsonUinExtractor.RECENT_VISITORS.extract(response.getReader(), userWrite);
             } catch (Exception ignored) {
             }
         } else if (fetchRequest instanceof RecentVisitorsDetailFetchRequest) {
-            QQUserRaw user = ((RecentVisitorsDetailFetchRequest) fetchRequest).getRelatedModel();
-            user.setRecentVisitorsDetail(content);
-            userStorage.update(user);
+            user.setPayloadBytes(QQUserRaw.RECENT_VISITORS_DETAIL, content);
 //            System.out.println(String.format("[%d] Recent visitors detail updated.", user.getUin()));
 
         } else if (fetchRequest instanceof FriendsFetchRequest) {
-            QQUserRaw user = ((FriendsFetchRequest) fetchRequest).getRelatedModel();
-            user.setFriends(content);
-            userStorage.update(user);
+            user.setPayloadBytes(QQUserRaw.FRIENDS, content);
 //            System.out.println(String.format("[%d] Friends updated.", user.getUin()));
-            newUserSource = "Friends";
+            userWrite.newUserSource = "Friends";
             try {
-                SAXBuilder saxBuilder = new SAXBuilder();
-                Document document = saxBuilder.build(new StringReader(content));
-                List<Element> groups = document.getRootElement().getChildren("group");
-                for (Element group : groups) {
-                    List<Element> friends = group.getChildren("friend");
-                    for (Element friend : friends) {
-                        long uin = Long.parseLong(friend.getAttributeValue("uin"));
-                        if (userStorage.insertIfNotExisted(uin))
-                            ++newUserCount;
-                    }
-                }
+                XmlUinExtractor.FRIEND_LIST.extract(response.getInputStream(), userWrite);
             } catch (Exception ignored) {
             }
         }
-        if (newUserCount > 0)
-            System.out.println(String.format("[%s] %d new QQ user(s) added.", newUserSource, newUserCount));
+        persist(userWrite);
+    }
+
+    @Override
+    protected void onFetchRequestDead(FetchRequest<QQUserRaw> fetchRequest, String reason) {
+        QQUserRaw user = fetchRequest.getRelatedModel();
+        System.out.println(String.format("[%s] Gave up fetching %d: %s.", fetchRequest.getType(), user.getUin(), reason));
     }
 
     /**
@@ -184,6 +176,102 @@ public class QQSpaceCrawler extends Crawler<QQUserRaw> {
         httpRequest.addHeader("Cookie", String.format("uin=o%010d; skey=%s", uin, skey));
     }
 
+    /**
+     * What a response changes in storage: the payload of its user, and the users it refers to. Collected by the parse stage, written by the persist stage.
+     */
+    private class UserWrite implements UinHandler, Runnable {
+
+        private final QQUserRaw user;
+
+        /**
+         * UINs found in the response.
+         */
+        private long[] uins = new long[16];
+
+        private int uinCount;
+
+        /**
+         * Where the UINs were found, for logging.
+         */
+        private String newUserSource = "";
+
+        public UserWrite(QQUserRaw user) {
+            this.user = user;
+        }
+
+        @Override
+        public void onUin(long uin) {
+            if (uinCount == uins.length) {
+                uins = Arrays.copyOf(uins, uinCount * 2);
+            }
+            uins[uinCount++] = uin;
+        }
+
+        @Override
+        public void run() {
+            QQUserStorage userStorage = (QQUserStorage) getUserStorage();
+            userStorage.update(user);
+            int depth = user.getUin() == uin ? 0 : user.getDepth();
+            int newUserPriority = depth == QQUserRaw.DEPTH_UNKNOWN ? Integer.MAX_VALUE : depth + 1;
+            int newUserCount = 0;
+            for (int i = 0; i < uinCount; ++i) {
+                if (userStorage.insertIfNotExisted(uins[i])) {
+                    ++newUserCount;
+                    if (frontier != null) {
+                        frontier.offer(uins[i], newUserPriority);
+                    }
+                }
+            }
+            if (newUserCount > 0) {
+                System.out.println(String.format("[%s] %d new QQ user(s) added.", newUserSource, newUserCount));
+                notifyNewUsers();
+            }
+        }
+    }
+
+    /**
+     * Takes new users from the frontier, and users from the storage once the frontier is empty.
+     * <p/>
+     * Users which have been offered to the frontier are skipped in the storage, as they are crawled from the frontier.
+     * <p/>
+     * The position is that of the storage cursor, as the frontier doesn't survive a restart.
+     */
+    private class FrontierCursor implements UserCursor<QQUserRaw> {
+
+        private final UserCursor<QQUserRaw> storageCursor;
+
+        public FrontierCursor(UserCursor<QQUserRaw> storageCursor) {
+            this.storageCursor = storageCursor;
+        }
+
+        @Override
+        public QQUserRaw next() {
+            for (int priority = 0; priority < frontier.getPriorityCount(); ++priority) {
+                long newUin = frontier.poll(priority);
+                if (newUin != -1) {
+                    QQUserRaw user = new QQUserRaw(newUin); // Nothing fetched yet, so there is nothing to read from storage
+                    user.setDepth(priority);
+                    return user;
+                }
+            }
+            QQUserRaw user;
+            while ((user = storageCursor.next()) != null && frontier.hasOffered(user.getUin())) {
+                // Crawled from the frontier
+            }
+            return user;
+        }
+
+        @Override
+        public long getPosition() {
+            return storageCursor.getPosition();
+        }
+
+        @Override
+        public void close() {
+            storageCursor.close();
+        }
+    }
+
     private class PersonalInfoFetchRequest extends FetchRequest<QQUserRaw> {
         public PersonalInfoFetchRequest(QQUserRaw user) {
             super(QQSpaceCrawler.this, user);
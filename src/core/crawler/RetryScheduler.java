@@ -0,0 +1,152 @@
+package core.crawler;
+
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/14/14.
+ */
+class RetryScheduler<T> {
+
+    /**
+     * The most retry tokens that can be saved up. Each retry spends one token.
+     */
+    private static final double MAX_RETRY_TOKENS = 100;
+
+    /**
+     * The maximum number of times a FetchRequest is executed before it is given up.
+     */
+    private int maxAttempts;
+
+    /**
+     * Backoff before the first retry, in milliseconds. Doubled for every further attempt.
+     */
+    private long baseDelay;
+
+    /**
+     * The longest backoff, in milliseconds.
+     */
+    private long maxDelay;
+
+    /**
+     * Retry tokens earned by each first attempt, i.e. the share of traffic that may be retries.
+     */
+    private double retryBudgetRatio;
+
+    /**
+     * Retry tokens currently available.
+     */
+    private double retryTokens = MAX_RETRY_TOKENS;
+
+    /**
+     * FetchRequest waiting for their backoff to expire.
+     */
+    private final DelayQueue<Retry<T>> retries = new DelayQueue<Retry<T>>();
+
+    private final Random random = new Random();
+
+    /**
+     * Create a retry scheduler.
+     *
+     * @param maxAttempts      The maximum number of times a FetchRequest is executed before it is given up.
+     * @param baseDelay        Backoff before the first retry, in milliseconds. Doubled for every further attempt.
+     * @param maxDelay         The longest backoff, in milliseconds.
+     * @param retryBudgetRatio The share of traffic that may be retries, e.g. 0.1 for 10%.
+     */
+    public RetryScheduler(int maxAttempts, long baseDelay, long maxDelay, double retryBudgetRatio) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.retryBudgetRatio = retryBudgetRatio;
+    }
+
+    /**
+     * Record that a FetchRequest is being sent for the first time, which earns retry budget.
+     */
+    public synchronized void onFirstAttempt() {
+        retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + retryBudgetRatio);
+    }
+
+    /**
+     * Schedule a failed FetchRequest to be retried after a jittered exponential backoff.
+     *
+     * @param fetchRequest FetchRequest that failed. Its attempt count must already include the failed attempt.
+     * @return null if it has been scheduled, or the reason why it is given up.
+     */
+    public String schedule(FetchRequest<T> fetchRequest) {
+        int attempts = fetchRequest.getAttemptCount();
+        if (attempts >= maxAttempts) {
+            return "Failed " + attempts + " time(s)";
+        }
+        long delay;
+        synchronized (this) {
+            if (retryTokens < 1) {
+                return "Retry budget exhausted";
+            }
+            retryTokens -= 1;
+            long backoff = Math.min(maxDelay, baseDelay << Math.min(attempts - 1, 30));
+            delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2)); // Jitter spreads retries of a burst of failures
+        }
+        retries.add(new Retry<T>(fetchRequest, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)));
+        return null;
+    }
+
+    /**
+     * Take a FetchRequest whose backoff has expired.
+     *
+     * @return A FetchRequest ready to be retried, or null if there is none.
+     */
+    public FetchRequest<T> poll() {
+        Retry<T> retry = retries.poll();
+        return retry != null ? retry.fetchRequest : null;
+    }
+
+    /**
+     * Get the number of FetchRequest waiting to be retried.
+     *
+     * @return Waiting retry number.
+     */
+    public int size() {
+        return retries.size();
+    }
+
+    /**
+     * Drop all waiting retries.
+     */
+    public void clear() {
+        retries.clear();
+    }
+
+    /**
+     * A FetchRequest waiting for its backoff to expire.
+     */
+    private static class Retry<T> implements Delayed {
+
+        private final FetchRequest<T> fetchRequest;
+
+        /**
+         * When the backoff expires, in System.nanoTime().
+         */
+        private final long dueTime;
+
+        public Retry(FetchRequest<T> fetchRequest, long dueTime) {
+            this.fetchRequest = fetchRequest;
+            this.dueTime = dueTime;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long difference = dueTime - ((Retry<?>) other).dueTime;
+            return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+        }
+    }
+}
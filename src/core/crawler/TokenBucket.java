@@ -0,0 +1,54 @@
+package core.crawler;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/06/14.
+ */
+class TokenBucket {
+
+    /**
+     * Tokens added per nanosecond.
+     */
+    private final double tokensPerNano;
+
+    /**
+     * The maximum number of tokens, i.e. the largest burst allowed.
+     */
+    private final double capacity;
+
+    /**
+     * Tokens currently in the bucket. Negative if tokens have been reserved ahead of time.
+     */
+    private double tokens;
+
+    /**
+     * When tokens was last refilled, in System.nanoTime().
+     */
+    private long lastRefillTime = System.nanoTime();
+
+    /**
+     * Create a token bucket, initially full.
+     *
+     * @param permitsPerSecond Sustained rate.
+     * @param burst            The maximum number of permits that can be taken at once after being idle.
+     */
+    public TokenBucket(double permitsPerSecond, int burst) {
+        tokensPerNano = permitsPerSecond / 1e9;
+        capacity = Math.max(1, burst);
+        tokens = capacity;
+    }
+
+    /**
+     * Take a permit, reserving a future one if the bucket is empty.
+     *
+     * @return Nanoseconds the caller should wait before using the permit. 0 if it can be used right away.
+     */
+    public synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillTime) * tokensPerNano);
+        lastRefillTime = now;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+    }
+}
@@ -0,0 +1,16 @@
+package core.crawler;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/22/14.
+ */
+public interface UinHandler {
+
+    /**
+     * Called for each UIN found in a response, as soon as it is read.
+     *
+     * @param uin The UIN.
+     */
+    public void onUin(long uin);
+}
@@ -0,0 +1,65 @@
+package core.crawler;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/04/14.
+ */
+class VirtualThreads {
+
+    /**
+     * Factory of virtual threads, or null if the running JVM doesn't support them.
+     */
+    private static final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+
+    /**
+     * Used to name fallback platform threads.
+     */
+    private static final AtomicInteger seq = new AtomicInteger();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Return whether the running JVM supports virtual threads (Java 21+).
+     *
+     * @return true if supported, otherwise false.
+     */
+    public static boolean isSupported() {
+        return virtualThreadFactory != null;
+    }
+
+    /**
+     * Create an unstarted virtual thread, or a platform thread if virtual threads are not supported.
+     *
+     * @param task The task the thread will run.
+     * @return A new unstarted thread.
+     */
+    public static Thread newThread(Runnable task) {
+        if (virtualThreadFactory != null) {
+            return virtualThreadFactory.newThread(task);
+        }
+        return new Thread(task, "PlatformThread-" + seq.incrementAndGet());
+    }
+
+    /**
+     * Look up Thread.ofVirtual().factory() by reflection, so the project still builds and runs on older JDKs.
+     *
+     * @return Factory of virtual threads, or null if not available.
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "VirtualThread-", 1L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package core.crawler;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.crawler
+ * Created by Stackia <jsq2627@gmail.com> on 12/22/14.
+ * <p/>
+ * Pulls UINs out of an XML response with a StAX reader, without building a document of it.
+ * <p/>
+ * An extractor is made for a path of elements below the root element, e.g. group/friend, and an attribute of the last one holding the UIN.
+ */
+public class XmlUinExtractor {
+
+    /**
+     * UINs of the friends of the logged in user: the uin attribute of group/friend below the root element.
+     */
+    public static final XmlUinExtractor FRIEND_LIST = new XmlUinExtractor("uin", "group", "friend");
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    static {
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false); // Responses have none, and entities must not be resolved
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+    }
+
+    /**
+     * Element names leading from the root element to the elements holding UINs.
+     */
+    private final String[] path;
+
+    /**
+     * Attribute holding the UIN.
+     */
+    private final String uinName;
+
+    /**
+     * Create an extractor.
+     *
+     * @param uinName Attribute of the last element of the path holding the UIN.
+     * @param path    Element names leading from the root element.
+     */
+    public XmlUinExtractor(String uinName, String... path) {
+        if (path.length == 0) {
+            throw new IllegalArgumentException("Empty path");
+        }
+        this.uinName = uinName;
+        this.path = path;
+    }
+
+    /**
+     * Extract UINs from a response body. Its charset is taken from the XML declaration.
+     *
+     * @param inputStream Response body. Not closed.
+     * @param handler     Receives each UIN.
+     * @return Number of UINs found.
+     * @throws XMLStreamException If the response is not well-formed. UINs before the error have been handled.
+     */
+    public int extract(InputStream inputStream, UinHandler handler) throws XMLStreamException {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(inputStream);
+        try {
+            return extract(reader, handler);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Extract UINs from response characters.
+     *
+     * @param reader  Response characters. Not closed.
+     * @param handler Receives each UIN.
+     * @return Number of UINs found.
+     * @throws XMLStreamException If the response is not well-formed. UINs before the error have been handled.
+     */
+    public int extract(Reader reader, UinHandler handler) throws XMLStreamException {
+        XMLStreamReader xmlReader = inputFactory.createXMLStreamReader(reader);
+        try {
+            return extract(xmlReader, handler);
+        } finally {
+            xmlReader.close();
+        }
+    }
+
+    private int extract(XMLStreamReader reader, UinHandler handler) throws XMLStreamException {
+        int count = 0;
+        int depth = -1; // Of the root element: 0
+        int matchedDepth = 0; // Number of elements of path the current element is within
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                ++depth;
+                if (depth == matchedDepth + 1 && depth <= path.length && reader.getLocalName().equals(path[depth - 1])) {
+                    matchedDepth = depth;
+                    if (depth == path.length) {
+                        String uin = reader.getAttributeValue(null, uinName);
+                        if (uin != null) {
+                            try {
+                                handler.onUin(Long.parseLong(uin.trim()));
+                                ++count;
+                            } catch (NumberFormatException ignored) {
+                            }
+                        }
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == matchedDepth) {
+                    --matchedDepth;
+                }
+                --depth;
+            }
+        }
+        return count;
+    }
+}
@@ -1,11 +1,28 @@
 package core.model;
 
+import java.nio.charset.Charset;
+
 /**
  * Project: SocialCrawler
  * Package: core.model
  * Created by Stackia <jsq2627@gmail.com> on 11/19/14.
  */
 public class QQUserRaw {
+
+    /**
+     * Bits of fetchedFields and dirtyFields, one for each payload.
+     */
+    public static final int PERSONAL_INFO = 1;
+    public static final int PERSONAL_INFO_DETAIL = 1 << 1;
+    public static final int MESSAGE_BOARD = 1 << 2;
+    public static final int RECENT_VISITORS = 1 << 3;
+    public static final int RECENT_VISITORS_DETAIL = 1 << 4;
+    public static final int FRIENDS = 1 << 5;
+
+    public static final int DEPTH_UNKNOWN = Integer.MAX_VALUE;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private long uin;
     private String personalInfo;
     private String personalInfoDetail;
@@ -14,6 +31,26 @@ public class QQUserRaw {
     private String recentVisitorsDetail;
     private String friends;
 
+    /**
+     * Payloads which have been fetched, whether or not they are loaded into this object.
+     */
+    private int fetchedFields;
+
+    /**
+     * Payloads set since the user was last written to storage.
+     */
+    private int dirtyFields;
+
+    /**
+     * Payloads set as UTF-8 bytes, indexed by the position of their bit. Decoded into a String on first access.
+     */
+    private volatile byte[][] payloadBytes;
+
+    /**
+     * Number of hops from the logged in user through which the user has been found, or DEPTH_UNKNOWN. Not stored.
+     */
+    private int depth = DEPTH_UNKNOWN;
+
     public QQUserRaw() {
     }
 
@@ -30,50 +67,224 @@ public class QQUserRaw {
     }
 
     public String getPersonalInfo() {
+        if (personalInfo == null && payloadBytes != null) {
+            personalInfo = decodePayload(PERSONAL_INFO);
+        }
         return personalInfo;
     }
 
     public void setPersonalInfo(String personalInfo) {
         this.personalInfo = personalInfo;
+        onFieldSet(PERSONAL_INFO, personalInfo != null);
     }
 
     public String getPersonalInfoDetail() {
+        if (personalInfoDetail == null && payloadBytes != null) {
+            personalInfoDetail = decodePayload(PERSONAL_INFO_DETAIL);
+        }
         return personalInfoDetail;
     }
 
     public void setPersonalInfoDetail(String personalInfoDetail) {
         this.personalInfoDetail = personalInfoDetail;
+        onFieldSet(PERSONAL_INFO_DETAIL, personalInfoDetail != null);
     }
 
     public String getMessageBoard() {
+        if (messageBoard == null && payloadBytes != null) {
+            messageBoard = decodePayload(MESSAGE_BOARD);
+        }
         return messageBoard;
     }
 
     public void setMessageBoard(String messageBoard) {
         this.messageBoard = messageBoard;
+        onFieldSet(MESSAGE_BOARD, messageBoard != null);
     }
 
     public String getRecentVisitors() {
+        if (recentVisitors == null && payloadBytes != null) {
+            recentVisitors = decodePayload(RECENT_VISITORS);
+        }
         return recentVisitors;
     }
 
     public void setRecentVisitors(String recentVisitors) {
         this.recentVisitors = recentVisitors;
+        onFieldSet(RECENT_VISITORS, recentVisitors != null);
     }
 
     public String getRecentVisitorsDetail() {
+        if (recentVisitorsDetail == null && payloadBytes != null) {
+            recentVisitorsDetail = decodePayload(RECENT_VISITORS_DETAIL);
+        }
         return recentVisitorsDetail;
     }
 
     public void setRecentVisitorsDetail(String recentVisitorsDetail) {
         this.recentVisitorsDetail = recentVisitorsDetail;
+        onFieldSet(RECENT_VISITORS_DETAIL, recentVisitorsDetail != null);
     }
 
     public String getFriends() {
+        if (friends == null && payloadBytes != null) {
+            friends = decodePayload(FRIENDS);
+        }
         return friends;
     }
 
     public void setFriends(String friends) {
         this.friends = friends;
+        onFieldSet(FRIENDS, friends != null);
+    }
+
+    /**
+     * Get a payload by its bit.
+     *
+     * @param field One of the payload bits, e.g. MESSAGE_BOARD.
+     * @return The payload, or null if there is none.
+     */
+    public String getPayload(int field) {
+        switch (field) {
+            case PERSONAL_INFO:
+                return getPersonalInfo();
+            case PERSONAL_INFO_DETAIL:
+                return getPersonalInfoDetail();
+            case MESSAGE_BOARD:
+                return getMessageBoard();
+            case RECENT_VISITORS:
+                return getRecentVisitors();
+            case RECENT_VISITORS_DETAIL:
+                return getRecentVisitorsDetail();
+            case FRIENDS:
+                return getFriends();
+        }
+        throw new IllegalArgumentException("Unknown payload: " + field);
+    }
+
+    /**
+     * Check if a payload has been fetched. Works for users loaded without their payloads.
+     *
+     * @param field One of the payload bits, e.g. MESSAGE_BOARD.
+     * @return true if fetched, otherwise false.
+     */
+    public boolean isFetched(int field) {
+        return (fetchedFields & field) != 0;
+    }
+
+    public int getFetchedFields() {
+        return fetchedFields;
+    }
+
+    public void setFetchedFields(int fetchedFields) {
+        this.fetchedFields = fetchedFields;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * Set a payload as UTF-8 bytes, e.g. as fetched or as read from storage. It is only decoded into a String when its getter is called.
+     *
+     * @param field   Bit of the payload.
+     * @param payload UTF-8 payload, or null to clear it. Must not be modified afterwards.
+     */
+    public synchronized void setPayloadBytes(int field, byte[] payload) {
+        switch (field) {
+            case PERSONAL_INFO:
+                personalInfo = null;
+                break;
+            case PERSONAL_INFO_DETAIL:
+                personalInfoDetail = null;
+                break;
+            case MESSAGE_BOARD:
+                messageBoard = null;
+                break;
+            case RECENT_VISITORS:
+                recentVisitors = null;
+                break;
+            case RECENT_VISITORS_DETAIL:
+                recentVisitorsDetail = null;
+                break;
+            case FRIENDS:
+                friends = null;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown payload: " + field);
+        }
+        onFieldSet(field, payload != null);
+        if (payload != null) {
+            if (payloadBytes == null) {
+                payloadBytes = new byte[6][];
+            }
+            payloadBytes[Integer.numberOfTrailingZeros(field)] = payload;
+        }
+    }
+
+    /**
+     * Get a payload as UTF-8 bytes, without decoding it into a String if it has been set as bytes.
+     *
+     * @param field One of the payload bits, e.g. MESSAGE_BOARD.
+     * @return UTF-8 payload, which must not be modified, or null if there is none.
+     */
+    public byte[] getPayloadBytes(int field) {
+        byte[][] payloadBytes = this.payloadBytes;
+        if (payloadBytes != null && payloadBytes[Integer.numberOfTrailingZeros(field)] != null) {
+            return payloadBytes[Integer.numberOfTrailingZeros(field)];
+        }
+        String payload = getPayload(field);
+        return payload == null ? null : payload.getBytes(UTF_8);
+    }
+
+    /**
+     * Decode a payload set by setPayloadBytes().
+     *
+     * @param field Bit of the payload.
+     * @return The payload, or null if there is none.
+     */
+    private String decodePayload(int field) {
+        byte[] payload = payloadBytes[Integer.numberOfTrailingZeros(field)];
+        return payload == null ? null : new String(payload, UTF_8);
+    }
+
+    /**
+     * Take the payloads set since the last call, so that storage writes only those columns.
+     *
+     * @return Bits of the changed payloads.
+     */
+    public synchronized int takeDirtyFields() {
+        int dirtyFields = this.dirtyFields;
+        this.dirtyFields = 0;
+        return dirtyFields;
+    }
+
+    /**
+     * Mark payloads as changed again, e.g. after storage failed to write them.
+     *
+     * @param fields Bits of the payloads.
+     */
+    public synchronized void markDirty(int fields) {
+        dirtyFields |= fields;
+    }
+
+    /**
+     * Record that a payload has been set. Payloads of the same user may be set from different threads.
+     *
+     * @param field   Bit of the payload.
+     * @param fetched Whether the new value is a fetched payload rather than null.
+     */
+    private synchronized void onFieldSet(int field, boolean fetched) {
+        if (payloadBytes != null) {
+            payloadBytes[Integer.numberOfTrailingZeros(field)] = null;
+        }
+        dirtyFields |= field;
+        if (fetched) {
+            fetchedFields |= field;
+        }
     }
 }
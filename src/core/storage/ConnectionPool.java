@@ -0,0 +1,204 @@
+package core.storage;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.storage
+ * Created by Stackia <jsq2627@gmail.com> on 12/18/14.
+ */
+public class ConnectionPool {
+
+    /**
+     * Connections idle for longer than this are validated before they are handed out, in milliseconds.
+     */
+    private static final long VALIDATE_AFTER_IDLE = 60000;
+
+    private static final int VALIDATE_TIMEOUT_SECONDS = 2;
+
+    private String url;
+    private String user;
+    private String password;
+
+    /**
+     * Connections not in use.
+     */
+    private final BlockingQueue<PooledConnection> idleConnections = new LinkedBlockingQueue<PooledConnection>();
+
+    /**
+     * One permit for each connection that may be in use, so acquire() blocks when all of them are.
+     */
+    private final Semaphore connectionPermits;
+
+    /**
+     * Create a pool that opens up to maxConnections connections to a database, as they are needed.
+     *
+     * @param url            JDBC URL of the database.
+     * @param user           Database user.
+     * @param password       Password of the user.
+     * @param maxConnections The maximum number of open connections.
+     */
+    public ConnectionPool(String url, String user, String password, int maxConnections) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        connectionPermits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Create a pool of a single existing connection. It can't be reopened if it breaks.
+     *
+     * @param connection The connection to share.
+     */
+    public ConnectionPool(Connection connection) {
+        connectionPermits = new Semaphore(1, true);
+        idleConnections.add(new PooledConnection(connection));
+    }
+
+    /**
+     * Take a connection for exclusive use, opening a new one if none is idle. Blocks while all connections are in use.
+     * <p/>
+     * The connection must be given back with release().
+     *
+     * @return A connection.
+     * @throws SQLException If a new connection can't be opened, or the current thread is interrupted.
+     */
+    PooledConnection acquire() throws SQLException {
+        try {
+            connectionPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection");
+        }
+        try {
+            PooledConnection connection;
+            while ((connection = idleConnections.poll()) != null) {
+                if (url == null || System.currentTimeMillis() - connection.getReleaseTime() < VALIDATE_AFTER_IDLE || connection.getConnection().isValid(VALIDATE_TIMEOUT_SECONDS)) {
+                    return connection;
+                }
+                connection.close(); // Probably closed by the server
+            }
+            return new PooledConnection(DriverManager.getConnection(url, user, password));
+        } catch (SQLException e) {
+            connectionPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a connection taken by acquire(). It is closed instead if it has been marked broken, unless it can't be reopened.
+     *
+     * @param connection The connection.
+     */
+    void release(PooledConnection connection) {
+        if (connection.isBroken() && url != null) {
+            connection.close();
+        } else {
+            connection.setReleaseTime(System.currentTimeMillis());
+            idleConnections.add(connection);
+        }
+        connectionPermits.release();
+    }
+
+    /**
+     * Close all idle connections.
+     */
+    public void close() {
+        PooledConnection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * A connection which caches its prepared statements. Only used by one thread at a time.
+     */
+    static class PooledConnection {
+
+        private final Connection connection;
+
+        /**
+         * Prepared statements by SQL.
+         */
+        private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+        private long releaseTime = System.currentTimeMillis();
+
+        private boolean broken;
+
+        public PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Get a prepared statement of this connection, preparing it the first time. It must not be closed by the caller.
+         *
+         * @param sql SQL of the statement.
+         * @return The prepared statement, with its parameters cleared.
+         * @throws SQLException
+         */
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        /**
+         * Mark the connection broken if an error was caused by the connection rather than the statement, so that it is not reused.
+         *
+         * @param e The error.
+         */
+        public void onError(SQLException e) {
+            String sqlState = e.getSQLState();
+            if (sqlState == null || sqlState.startsWith("08")) { // Connection exception
+                broken = true;
+            }
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        public boolean isBroken() {
+            return broken;
+        }
+
+        public long getReleaseTime() {
+            return releaseTime;
+        }
+
+        public void setReleaseTime(long releaseTime) {
+            this.releaseTime = releaseTime;
+        }
+
+        /**
+         * Close the connection and its statements.
+         */
+        public void close() {
+            for (PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException ignored) {
+                }
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,958 @@
+package core.storage;
+
+import core.model.QQUserRaw;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.storage
+ * Created by Stackia <jsq2627@gmail.com> on 12/21/14.
+ * <p/>
+ * A storage of QQ users in append-only segment files on local disk, which needs no database server.
+ * <p/>
+ * Every change is appended to the newest segment as a record: a user inserted, one payload updated, or a user deleted. An in-memory index maps each UIN to the records holding its current state, and the order in which users were inserted, which is what cursors walk. Segments mostly made of superseded records are compacted in the background, and the index is rebuilt from the segments when the storage is opened.
+ */
+public class QQUserRawLogStorage implements QQUserStorage {
+
+    private static final byte RECORD_INSERT = 1;
+    private static final byte RECORD_UPDATE = 2;
+    private static final byte RECORD_DELETE = 3;
+
+    /**
+     * Length and CRC32 of the record body.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Type, version and UIN, at the start of every record body.
+     */
+    private static final int BODY_HEADER_SIZE = 17;
+
+    private static final int INSERT_RECORD_SIZE = RECORD_HEADER_SIZE + BODY_HEADER_SIZE + 8;
+
+    private static final int MAX_RECORD_SIZE = 64 << 20;
+
+    /**
+     * A new segment is started when a record doesn't fit in this size.
+     */
+    private static final long SEGMENT_SIZE = 64 << 20;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Segments in which at least this share of bytes has been superseded are compacted.
+     */
+    private static final double COMPACTION_GARBAGE_RATIO = 0.5;
+
+    /**
+     * Buffered records are written and synced to disk at this interval, in milliseconds.
+     */
+    private static final long SYNC_INTERVAL = 1000;
+
+    /**
+     * Segments are checked for compaction at this interval, in milliseconds.
+     */
+    private static final long COMPACTION_INTERVAL = 60000;
+
+    private static final int PAYLOAD_NUM = 6;
+
+    /**
+     * UINs by insertion order are kept in chunks of 2^16.
+     */
+    private static final int ORDER_CHUNK_SHIFT = 16;
+
+    private static final int ORDER_CHUNK_MASK = (1 << ORDER_CHUNK_SHIFT) - 1;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File directory;
+
+    /**
+     * Guards segments, the write buffer and changes to the index. Lookups in the index don't need it.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Segments by id, in the order they were written.
+     */
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+    /**
+     * The segment records are appended to.
+     */
+    private Segment activeSegment;
+
+    /**
+     * Records appended to activeSegment but not yet written to its file.
+     */
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Version of the last record written. Versions decide which record wins when the segments are replayed, as compaction moves records out of order.
+     */
+    private long lastVersion;
+
+    /**
+     * Users in the storage by UIN.
+     */
+    private final ConcurrentHashMap<Long, Entry> index = new ConcurrentHashMap<Long, Entry>();
+
+    /**
+     * UINs by insertion sequence. Slots of deleted users are left as they are, and skipped by checking the index.
+     */
+    private volatile long[][] uinsBySeq = new long[16][];
+
+    /**
+     * Sequence number of the next user inserted. Published after its slot in uinsBySeq has been written.
+     */
+    private volatile long nextSeq = 1;
+
+    /**
+     * Serializes compactions.
+     */
+    private final Object compactionMonitor = new Object();
+
+    private final ScheduledExecutorService maintenanceTimer;
+
+    /**
+     * Open a storage in a directory, creating it if it doesn't exist, and rebuild the index from its segments.
+     * <p/>
+     * A record torn by a crash is cut off along with everything after it in its segment.
+     *
+     * @param directory Directory of the segment files.
+     * @throws IOException If the directory can't be read or written.
+     */
+    public QQUserRawLogStorage(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        recover();
+        maintenanceTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LogStorageMaintenanceThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        maintenanceTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        maintenanceTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        }, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean insert(QQUserRaw newUser) {
+        byte[][] payloads = encodePayloads(newUser, (1 << PAYLOAD_NUM) - 1);
+        newUser.takeDirtyFields(); // Every payload is inserted
+        lock.lock();
+        try {
+            if (index.containsKey(newUser.getUin())) {
+                return false;
+            }
+            Entry entry = appendInsert(newUser.getUin());
+            for (int i = 0; i < PAYLOAD_NUM; ++i) {
+                if (payloads[i] != null) {
+                    appendUpdate(entry, newUser.getUin(), i, payloads[i]);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        return false;
+    }
+
+    public boolean insert(long uin) {
+        QQUserRaw newUser = new QQUserRaw(uin);
+        return insert(newUser);
+    }
+
+    @Override
+    public boolean insertIfNotExisted(long uin) {
+        if (index.containsKey(uin)) {
+            return false; // Known UINs never take the lock
+        }
+        lock.lock();
+        try {
+            if (index.containsKey(uin)) {
+                return false;
+            }
+            appendInsert(uin);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean delete(QQUserRaw userToDelete) {
+        lock.lock();
+        try {
+            Entry entry = index.get(userToDelete.getUin());
+            if (entry == null) {
+                return false;
+            }
+            appendRecord(newBody(RECORD_DELETE, userToDelete.getUin(), 0)); // Kept by compaction while the UIN is absent
+            index.remove(userToDelete.getUin());
+            supersede(entry.insertLocation, INSERT_RECORD_SIZE);
+            if (entry.locations != null) {
+                for (int i = 0; i < PAYLOAD_NUM; ++i) {
+                    supersede(entry.locations[i], entry.sizes[i]);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        return false;
+    }
+
+    public boolean delete(long uin) {
+        QQUserRaw userToDelete = new QQUserRaw(uin);
+        return delete(userToDelete);
+    }
+
+    /**
+     * Find a user with all its payloads by its insertion order, like QQUserRawStorage.find(). Payloads are decompressed as they are read.
+     *
+     * @param offset Number of users inserted before it, i.e. 0 for the first user. Positions of deleted users stay empty.
+     * @return The user, or null if there is no user at this offset.
+     */
+    @Override
+    public QQUserRaw find(long offset) {
+        long seq = offset + 1; // Sequence numbers start from 1
+        if (offset < 0 || seq >= nextSeq) {
+            return null;
+        }
+        long uin = uinAt(seq);
+        lock.lock();
+        try {
+            Entry entry = index.get(uin);
+            if (entry == null || entry.seq != seq) {
+                return null;
+            }
+            QQUserRaw user = new QQUserRaw(uin);
+            if (entry.locations != null) {
+                for (int i = 0; i < PAYLOAD_NUM; ++i) {
+                    if (entry.locations[i] != 0 && (entry.fetchedFields & (1 << i)) != 0) {
+                        ByteBuffer record = readRecord(entry.locations[i], entry.sizes[i]);
+                        record.position(RECORD_HEADER_SIZE + BODY_HEADER_SIZE + 1);
+                        byte[] payload = new byte[record.remaining()];
+                        record.get(payload);
+                        user.setPayloadBytes(1 << i, PayloadCodec.decodeBytes(payload));
+                    }
+                }
+            }
+            user.takeDirtyFields(); // As read from the storage
+            return user;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        return null;
+    }
+
+    /**
+     * Open a cursor that walks users in insertion order. Users returned carry which payloads have been fetched, but not the payloads.
+     *
+     * @param position Position returned by UserCursor.getPosition(), or 0 to start from the first user.
+     * @return A cursor.
+     */
+    @Override
+    public UserCursor<QQUserRaw> openCursor(long position) {
+        return new SequenceCursor(position);
+    }
+
+    @Override
+    public boolean exists(QQUserRaw user) {
+        return index.containsKey(user.getUin());
+    }
+
+    public boolean exists(long uin) {
+        return index.containsKey(uin);
+    }
+
+    /**
+     * Append the payloads changed since the user was last written, one record each.
+     *
+     * @param user The user with updated information.
+     * @return true if successful or there is nothing to write, otherwise false.
+     */
+    @Override
+    public boolean update(QQUserRaw user) {
+        int fields = user.takeDirtyFields();
+        if (fields == 0) {
+            return true;
+        }
+        byte[][] payloads = encodePayloads(user, fields); // Compressed before taking the lock
+        lock.lock();
+        try {
+            Entry entry = index.get(user.getUin());
+            if (entry == null) { // Not inserted yet, or deleted
+                user.markDirty(fields); // Written by an update after it is inserted
+                return false;
+            }
+            for (int i = 0; i < PAYLOAD_NUM; ++i) {
+                if ((fields & (1 << i)) != 0) {
+                    appendUpdate(entry, user.getUin(), i, payloads[i]);
+                    fields &= ~(1 << i);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            user.markDirty(fields); // Written by the next update
+        } finally {
+            lock.unlock();
+        }
+        return false;
+    }
+
+    /**
+     * Write buffered records to the newest segment and sync it to disk.
+     */
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            flushWriteBuffer();
+            activeSegment.channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrite the live records of segments mostly made of superseded records to the newest segment, and delete those segments.
+     * <p/>
+     * Runs in the background every COMPACTION_INTERVAL. Writes may go on meanwhile.
+     */
+    public void compact() {
+        synchronized (compactionMonitor) {
+            List<Segment> candidates = new ArrayList<Segment>();
+            lock.lock();
+            try {
+                for (Segment segment : segments.values()) {
+                    if (segment != activeSegment && segment.size - segment.liveSize >= segment.size * COMPACTION_GARBAGE_RATIO) {
+                        candidates.add(segment);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Segment segment : candidates) {
+                try {
+                    compactSegment(segment);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sync and close all segments, and stop background work. The storage can't be used afterwards.
+     */
+    public void close() {
+        maintenanceTimer.shutdown();
+        synchronized (compactionMonitor) {
+            lock.lock();
+            try {
+                flushWriteBuffer();
+                activeSegment.channel.force(false);
+                for (Segment segment : segments.values()) {
+                    segment.channel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the number of users in the storage.
+     *
+     * @return User number.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Get the number of segment files.
+     *
+     * @return Segment number.
+     */
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static byte[][] encodePayloads(QQUserRaw user, int fields) {
+        byte[][] payloads = new byte[PAYLOAD_NUM][];
+        for (int i = 0; i < PAYLOAD_NUM; ++i) {
+            if ((fields & (1 << i)) != 0) {
+                payloads[i] = PayloadCodec.encode(user.getPayloadBytes(1 << i));
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     * Append an insert record and add the user to the index. Must hold lock.
+     */
+    private Entry appendInsert(long uin) throws IOException {
+        long seq = nextSeq;
+        ByteBuffer body = newBody(RECORD_INSERT, uin, 8);
+        body.putLong(seq);
+        Entry entry = new Entry();
+        entry.seq = seq;
+        entry.insertLocation = appendRecord(body);
+        index.put(uin, entry);
+        setUinAt(seq, uin);
+        nextSeq = seq + 1;
+        return entry;
+    }
+
+    /**
+     * Append an update record of one payload and point the index at it. Must hold lock.
+     *
+     * @param payload Payload encoded by PayloadCodec, or null to clear the payload.
+     */
+    private void appendUpdate(Entry entry, long uin, int payloadIndex, byte[] payload) throws IOException {
+        int payloadSize = payload != null ? payload.length : 0;
+        ByteBuffer body = newBody(RECORD_UPDATE, uin, 1 + payloadSize);
+        body.put((byte) payloadIndex);
+        if (payload != null) {
+            body.put(payload);
+        }
+        long location = appendRecord(body);
+        if (entry.locations == null) {
+            entry.locations = new long[PAYLOAD_NUM];
+            entry.sizes = new int[PAYLOAD_NUM];
+        }
+        supersede(entry.locations[payloadIndex], entry.sizes[payloadIndex]);
+        entry.locations[payloadIndex] = location;
+        entry.sizes[payloadIndex] = RECORD_HEADER_SIZE + body.capacity();
+        if (payload != null) {
+            entry.fetchedFields |= 1 << payloadIndex;
+        } else {
+            entry.fetchedFields &= ~(1 << payloadIndex);
+        }
+    }
+
+    private ByteBuffer newBody(byte type, long uin, int extraSize) {
+        ByteBuffer body = ByteBuffer.allocate(BODY_HEADER_SIZE + extraSize);
+        body.put(type);
+        body.putLong(++lastVersion);
+        body.putLong(uin);
+        return body;
+    }
+
+    /**
+     * Append a record with a body built by newBody(). Must hold lock.
+     *
+     * @return Location of the record.
+     */
+    private long appendRecord(ByteBuffer body) throws IOException {
+        crc.reset();
+        crc.update(body.array(), 0, body.capacity());
+        return appendRecord(body.array(), (int) crc.getValue());
+    }
+
+    /**
+     * Append a record to the active segment, starting a new segment if it doesn't fit. Must hold lock.
+     *
+     * @param body     Record body.
+     * @param checksum CRC32 of the body.
+     * @return Location of the record.
+     * @throws IOException
+     */
+    private long appendRecord(byte[] body, int checksum) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + body.length;
+        if (recordSize > MAX_RECORD_SIZE) {
+            throw new IOException("Record too large: " + recordSize + " bytes");
+        }
+        if (activeSegment.size > 0 && activeSegment.size + recordSize > SEGMENT_SIZE) {
+            flushWriteBuffer();
+            activeSegment.channel.force(false); // Sealed segments are never written again
+            activeSegment = openSegment(activeSegment.id + 1);
+        }
+        long location = (long) activeSegment.id << 32 | activeSegment.size;
+        if (recordSize > writeBuffer.remaining()) {
+            flushWriteBuffer();
+        }
+        if (recordSize > writeBuffer.capacity()) {
+            ByteBuffer record = ByteBuffer.allocate(recordSize);
+            record.putInt(body.length).putInt(checksum).put(body).flip();
+            writeFully(activeSegment, record);
+        } else {
+            writeBuffer.putInt(body.length).putInt(checksum).put(body);
+        }
+        activeSegment.size += recordSize;
+        activeSegment.liveSize += recordSize;
+        return location;
+    }
+
+    /**
+     * Write the write buffer to the active segment. Must hold lock.
+     */
+    private void flushWriteBuffer() throws IOException {
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+        writeBuffer.flip();
+        writeFully(activeSegment, writeBuffer);
+        writeBuffer.clear();
+    }
+
+    private static void writeFully(Segment segment, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            segment.writtenSize += segment.channel.write(buffer, segment.writtenSize);
+        }
+    }
+
+    /**
+     * Account a record as superseded. Must hold lock.
+     *
+     * @param location Location of the record, or 0 for none.
+     * @param size     Size of the record.
+     */
+    private void supersede(long location, int size) {
+        if (location == 0) {
+            return;
+        }
+        Segment segment = segments.get((int) (location >>> 32));
+        if (segment != null) {
+            segment.liveSize -= size;
+        }
+    }
+
+    /**
+     * Read a whole record. Must hold lock.
+     */
+    private ByteBuffer readRecord(long location, int size) throws IOException {
+        Segment segment = segments.get((int) (location >>> 32));
+        if (segment == null) {
+            throw new IOException("Missing segment " + (location >>> 32));
+        }
+        long offset = location & 0xFFFFFFFFL;
+        if (segment == activeSegment && offset + size > segment.writtenSize) {
+            flushWriteBuffer();
+        }
+        ByteBuffer record = ByteBuffer.allocate(size);
+        readFully(segment.channel, record, offset);
+        record.flip();
+        return record;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("Truncated record");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Copy the live records of a sealed segment to the active segment and delete it.
+     * <p/>
+     * Records are copied with their versions, so replaying the segments gives the same state whether or not this finished.
+     */
+    private void compactSegment(Segment segment) throws IOException {
+        long startTime = System.currentTimeMillis();
+        int copiedCount = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long offset = 0;
+        while (offset < segment.size) {
+            header.clear();
+            readFully(segment.channel, header, offset); // Sealed segments don't change, so no lock is needed to read them
+            int bodyLength = header.getInt(0);
+            int checksum = header.getInt(4);
+            ByteBuffer body = ByteBuffer.allocate(bodyLength);
+            readFully(segment.channel, body, offset + RECORD_HEADER_SIZE);
+            long location = (long) segment.id << 32 | offset;
+            byte type = body.get(0);
+            long uin = body.getLong(9);
+            lock.lock();
+            try {
+                Entry entry = index.get(uin);
+                if (type == RECORD_INSERT) {
+                    if (entry != null && entry.insertLocation == location) {
+                        entry.insertLocation = appendRecord(body.array(), checksum);
+                        ++copiedCount;
+                    }
+                } else if (type == RECORD_UPDATE) {
+                    int payloadIndex = body.get(BODY_HEADER_SIZE);
+                    if (entry != null && entry.locations != null && entry.locations[payloadIndex] == location) {
+                        entry.locations[payloadIndex] = appendRecord(body.array(), checksum);
+                        ++copiedCount;
+                    }
+                } else if (entry == null) { // A tombstone is needed until the UIN is inserted again
+                    appendRecord(body.array(), checksum);
+                    ++copiedCount;
+                }
+            } finally {
+                lock.unlock();
+            }
+            offset += RECORD_HEADER_SIZE + bodyLength;
+        }
+        lock.lock();
+        try {
+            flushWriteBuffer();
+            activeSegment.channel.force(false); // Copies must be on disk before the originals are gone
+            segments.remove(segment.id);
+            segment.channel.close();
+            if (!segment.file.delete()) {
+                System.out.println("Failed to delete compacted segment " + segment.file);
+            }
+        } finally {
+            lock.unlock();
+        }
+        System.out.println(String.format("Compacted segment %d of %d bytes: %d live records copied in %d ms.", segment.id, segment.size, copiedCount, System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * Rebuild the index by replaying every segment, then open the segment to append to.
+     */
+    private void recover() throws IOException {
+        long startTime = System.currentTimeMillis();
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.matches("\\d{8}\\" + SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Can't list directory " + directory);
+        }
+        Arrays.sort(files);
+        long recordCount = 0;
+        for (File file : files) {
+            Segment segment = openSegment(Integer.parseInt(file.getName().substring(0, 8)));
+            recordCount += replaySegment(segment);
+        }
+
+        long maxSeq = 0;
+        Iterator<Map.Entry<Long, Entry>> iterator = index.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.insertVersion == 0 || entry.deleteVersion > entry.insertVersion) {
+                iterator.remove(); // Deleted, or only stale records are left
+                continue;
+            }
+            segments.get((int) (entry.insertLocation >>> 32)).liveSize += INSERT_RECORD_SIZE;
+            if (entry.locations != null) {
+                for (int i = 0; i < PAYLOAD_NUM; ++i) {
+                    if (entry.locations[i] == 0) {
+                        continue;
+                    }
+                    if (entry.versions[i] < entry.insertVersion) { // Written before the user was deleted and inserted again
+                        entry.locations[i] = 0;
+                        entry.fetchedFields &= ~(1 << i);
+                    } else {
+                        segments.get((int) (entry.locations[i] >>> 32)).liveSize += entry.sizes[i];
+                    }
+                }
+                entry.versions = null;
+            }
+            maxSeq = Math.max(maxSeq, entry.seq);
+        }
+        long[][] chunks = new long[Math.max(16, (int) (maxSeq >>> ORDER_CHUNK_SHIFT) + 1)][];
+        for (Map.Entry<Long, Entry> mapEntry : index.entrySet()) {
+            long seq = mapEntry.getValue().seq;
+            int chunk = (int) (seq >>> ORDER_CHUNK_SHIFT);
+            if (chunks[chunk] == null) {
+                chunks[chunk] = new long[1 << ORDER_CHUNK_SHIFT];
+            }
+            chunks[chunk][(int) seq & ORDER_CHUNK_MASK] = mapEntry.getKey();
+        }
+        uinsBySeq = chunks;
+        nextSeq = Math.max(nextSeq, maxSeq + 1);
+
+        if (segments.isEmpty() || segments.lastEntry().getValue().size >= SEGMENT_SIZE) {
+            activeSegment = openSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+        }
+        System.out.println(String.format("Recovered %d users from %d records in %d segments in %d ms.", index.size(), recordCount, segments.size(), System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * Apply the records of a segment to the index, keeping for each user and payload the record of the highest version.
+     * <p/>
+     * The segment is cut off at the first torn or corrupted record.
+     *
+     * @return Number of records replayed.
+     */
+    private long replaySegment(Segment segment) throws IOException {
+        long fileSize = segment.channel.size();
+        long offset = 0;
+        long recordCount = 0;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 16));
+        try {
+            while (offset < fileSize) {
+                if (fileSize - offset < RECORD_HEADER_SIZE) {
+                    break;
+                }
+                int bodyLength = input.readInt();
+                int checksum = input.readInt();
+                if (bodyLength < BODY_HEADER_SIZE || bodyLength > MAX_RECORD_SIZE || fileSize - offset - RECORD_HEADER_SIZE < bodyLength) {
+                    break;
+                }
+                byte[] bodyBytes = new byte[bodyLength];
+                input.readFully(bodyBytes);
+                crc.reset();
+                crc.update(bodyBytes, 0, bodyLength);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                replayRecord(ByteBuffer.wrap(bodyBytes), (long) segment.id << 32 | offset, RECORD_HEADER_SIZE + bodyLength, segment);
+                offset += RECORD_HEADER_SIZE + bodyLength;
+                ++recordCount;
+            }
+        } finally {
+            input.close();
+        }
+        if (offset < fileSize) {
+            System.out.println(String.format("Segment %d is torn or corrupted at offset %d, %d bytes cut off.", segment.id, offset, fileSize - offset));
+            segment.channel.truncate(offset);
+        }
+        segment.size = offset;
+        segment.writtenSize = offset;
+        return recordCount;
+    }
+
+    private void replayRecord(ByteBuffer body, long location, int size, Segment segment) {
+        byte type = body.get();
+        long version = body.getLong();
+        long uin = body.getLong();
+        lastVersion = Math.max(lastVersion, version);
+        Entry entry = index.get(uin);
+        if (entry == null) {
+            entry = new Entry();
+            index.put(uin, entry);
+        }
+        if (type == RECORD_INSERT) {
+            long seq = body.getLong();
+            nextSeq = Math.max(nextSeq, seq + 1); // Sequence numbers of deleted users aren't reused
+            if (version > entry.insertVersion) {
+                entry.insertVersion = version;
+                entry.seq = seq;
+                entry.insertLocation = location;
+            }
+        } else if (type == RECORD_UPDATE) {
+            int payloadIndex = body.get();
+            if (entry.locations == null) {
+                entry.locations = new long[PAYLOAD_NUM];
+                entry.sizes = new int[PAYLOAD_NUM];
+                entry.versions = new long[PAYLOAD_NUM];
+            }
+            if (version > entry.versions[payloadIndex]) {
+                entry.versions[payloadIndex] = version;
+                entry.locations[payloadIndex] = location;
+                entry.sizes[payloadIndex] = size;
+                if (body.hasRemaining()) {
+                    entry.fetchedFields |= 1 << payloadIndex;
+                } else {
+                    entry.fetchedFields &= ~(1 << payloadIndex);
+                }
+            }
+        } else if (type == RECORD_DELETE) {
+            entry.deleteVersion = Math.max(entry.deleteVersion, version);
+            segment.liveSize += size; // Tombstones are kept
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        File file = new File(directory, String.format("%08d%s", id, SEGMENT_SUFFIX));
+        Segment segment = new Segment(id, file, new RandomAccessFile(file, "rw").getChannel());
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Get the UIN inserted with a sequence number, or -1 if it is not known, e.g. deleted before the storage was opened.
+     */
+    private long uinAt(long seq) {
+        long[][] chunks = uinsBySeq;
+        int chunk = (int) (seq >>> ORDER_CHUNK_SHIFT);
+        if (chunk >= chunks.length || chunks[chunk] == null) {
+            return -1;
+        }
+        return chunks[chunk][(int) seq & ORDER_CHUNK_MASK];
+    }
+
+    /**
+     * Must hold lock. The slot is visible to other threads once nextSeq is written.
+     */
+    private void setUinAt(long seq, long uin) {
+        int chunk = (int) (seq >>> ORDER_CHUNK_SHIFT);
+        long[][] chunks = uinsBySeq;
+        if (chunk >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(chunks.length * 2, chunk + 1));
+            uinsBySeq = chunks;
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new long[1 << ORDER_CHUNK_SHIFT];
+        }
+        chunks[chunk][(int) seq & ORDER_CHUNK_MASK] = uin;
+    }
+
+    /**
+     * A segment file.
+     */
+    private static class Segment {
+
+        private final int id;
+
+        private final File file;
+
+        private final FileChannel channel;
+
+        /**
+         * Bytes appended, including those still in the write buffer.
+         */
+        private long size;
+
+        /**
+         * Bytes written to the file.
+         */
+        private long writtenSize;
+
+        /**
+         * Bytes of records which are not superseded.
+         */
+        private long liveSize;
+
+        public Segment(int id, File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Where the current state of a user is. Changed only while holding lock.
+     */
+    private static class Entry {
+
+        /**
+         * Insertion sequence number.
+         */
+        private long seq;
+
+        /**
+         * Location of the insert record: the segment id in the upper 32 bits, the offset in the lower.
+         */
+        private long insertLocation;
+
+        /**
+         * Bits of the payloads which are set, as in QQUserRaw.getFetchedFields().
+         */
+        private volatile int fetchedFields;
+
+        /**
+         * Locations and sizes of the latest update record of each payload, or null if no payload has been written.
+         */
+        private long[] locations;
+        private int[] sizes;
+
+        /**
+         * Versions of the records above, only while replaying.
+         */
+        private long insertVersion;
+        private long deleteVersion;
+        private long[] versions;
+    }
+
+    /**
+     * Walks users by insertion sequence number. Deleted users are skipped.
+     */
+    private class SequenceCursor implements UserCursor<QQUserRaw> {
+
+        private long position;
+
+        public SequenceCursor(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public QQUserRaw next() {
+            while (position + 1 < nextSeq) {
+                long seq = ++position;
+                long uin = uinAt(seq);
+                Entry entry = index.get(uin);
+                if (entry != null && entry.seq == seq) {
+                    QQUserRaw user = new QQUserRaw(uin);
+                    user.setFetchedFields(entry.fetchedFields);
+                    return user;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -2,73 +2,543 @@ package core.storage;
 
 import core.model.QQUserRaw;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Project: SocialCrawler
  * Package: core.storage
  * Created by Stackia <jsq2627@gmail.com> on 11/19/14.
  */
-public class QQUserRawStorage implements UserStorage<QQUserRaw> {
+public class QQUserRawStorage implements QQUserStorage {
 
     /**
-     * The database connection this storage will use.
+     * The database connections this storage will use. Operations from different threads run on different connections.
      */
-    private Connection dbConnection;
+    private ConnectionPool connectionPool;
+
+    /**
+     * Qualified name of the table of users, e.g. social_spider.qq_users_raw.
+     */
+    private final String tableName;
+
+    /**
+     * Statements rewritten for tableName, by the statement they were written from.
+     */
+    private final Map<String, String> tableStatements = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Every UIN known to be in the database, so that insertIfNotExisted doesn't need to ask the database.
+     */
+    private final UinBitmap seenUins = new UinBitmap();
+
+    /**
+     * Whether seenUins holds every UIN in the database. If loading it failed, the database is still asked for UINs not in seenUins.
+     */
+    private volatile boolean seenUinsComplete;
+
+    /**
+     * Identifies a snapshot file of seen UINs.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x55494E53; // "UINS"
+
+    /**
+     * Magic, then id of the last user covered by the snapshot.
+     */
+    private static final int SNAPSHOT_HEADER_SIZE = 4 + 8;
+
+    private static final long SNAPSHOT_INTERVAL_MINUTES = 10;
+
+    /**
+     * The table statements are written for. Storages of other tables rewrite them, see sql().
+     */
+    public static final String DEFAULT_TABLE_NAME = "social_spider.qq_users_raw";
+
+    /**
+     * Number of users a cursor reads at a time.
+     */
+    private static final int CURSOR_BATCH_SIZE = 200;
+
+    /**
+     * MySQL error code of a duplicate key, for drivers that don't throw SQLIntegrityConstraintViolationException.
+     */
+    private static final int MYSQL_DUPLICATE_ENTRY = 1062;
+
+    private static final String INSERT_SQL = "INSERT INTO social_spider.qq_users_raw (uin, personal_info, personal_info_detail, message_board, recent_visitors, recent_visitors_detail, friends) VALUES (?, ?, ?, ?, ?, ?, ?);";
+
+    private static final String INSERT_COMPRESSED_SQL = "INSERT INTO social_spider.qq_users_raw (uin, personal_info_z, personal_info_detail_z, message_board_z, recent_visitors_z, recent_visitors_detail_z, friends_z) VALUES (?, ?, ?, ?, ?, ?, ?);";
+
+    /**
+     * Payload columns, in the order of the payload bits of QQUserRaw.
+     */
+    private static final String[] PAYLOAD_COLUMNS = {"personal_info", "personal_info_detail", "message_board", "recent_visitors", "recent_visitors_detail", "friends"};
+
+    /**
+     * Suffix of the binary column holding the compressed form of a payload column.
+     */
+    private static final String COMPRESSED_SUFFIX = "_z";
+
+    /**
+     * UPDATE statements by the payload bits they write. Only changed columns are written, so a fetch rewrites one longtext rather than six.
+     */
+    private static final String[] UPDATE_SQL = new String[1 << PAYLOAD_COLUMNS.length];
+
+    /**
+     * Same as UPDATE_SQL, but writing compressed columns and clearing their text columns.
+     */
+    private static final String[] UPDATE_COMPRESSED_SQL = new String[1 << PAYLOAD_COLUMNS.length];
+
+    /**
+     * Moves one text column of a row into its compressed column, unless it has been moved meanwhile.
+     */
+    private static final String[] MIGRATE_SQL = new String[PAYLOAD_COLUMNS.length];
+
+    static {
+        for (int fields = 1; fields < UPDATE_SQL.length; ++fields) {
+            StringBuilder sql = new StringBuilder("UPDATE social_spider.qq_users_raw SET ");
+            StringBuilder compressedSql = new StringBuilder("UPDATE social_spider.qq_users_raw SET ");
+            for (int i = 0; i < PAYLOAD_COLUMNS.length; ++i) {
+                if ((fields & (1 << i)) != 0) {
+                    if (sql.charAt(sql.length() - 1) == '?') {
+                        sql.append(", ");
+                        compressedSql.append(", ");
+                    }
+                    sql.append(PAYLOAD_COLUMNS[i]).append(" = ?");
+                    compressedSql.append(PAYLOAD_COLUMNS[i]).append(" = NULL, ").append(PAYLOAD_COLUMNS[i]).append(COMPRESSED_SUFFIX).append(" = ?");
+                }
+            }
+            UPDATE_SQL[fields] = sql.append(" WHERE uin = ?;").toString();
+            UPDATE_COMPRESSED_SQL[fields] = compressedSql.append(" WHERE uin = ?;").toString();
+        }
+        for (int i = 0; i < PAYLOAD_COLUMNS.length; ++i) {
+            MIGRATE_SQL[i] = "UPDATE social_spider.qq_users_raw SET " + PAYLOAD_COLUMNS[i] + COMPRESSED_SUFFIX + " = ?, " + PAYLOAD_COLUMNS[i] + " = NULL WHERE id = ? AND " + PAYLOAD_COLUMNS[i] + " IS NOT NULL;";
+        }
+    }
+
+    /**
+     * Reads only what scheduling needs: which payloads have been fetched, as the bits of QQUserRaw.getFetchedFields().
+     */
+    private static final String FIND_CRAWL_STATE_AFTER_SQL = "SELECT id, uin, (personal_info IS NOT NULL) | (personal_info_detail IS NOT NULL) << 1 | (message_board IS NOT NULL) << 2 | (recent_visitors IS NOT NULL) << 3 | (recent_visitors_detail IS NOT NULL) << 4 | (friends IS NOT NULL) << 5 AS fetched_fields FROM social_spider.qq_users_raw WHERE id > ? ORDER BY id LIMIT ?;";
+
+    private static final String FIND_CRAWL_STATE_AFTER_COMPRESSED_SQL = "SELECT id, uin, (personal_info IS NOT NULL OR personal_info_z IS NOT NULL) | (personal_info_detail IS NOT NULL OR personal_info_detail_z IS NOT NULL) << 1 | (message_board IS NOT NULL OR message_board_z IS NOT NULL) << 2 | (recent_visitors IS NOT NULL OR recent_visitors_z IS NOT NULL) << 3 | (recent_visitors_detail IS NOT NULL OR recent_visitors_detail_z IS NOT NULL) << 4 | (friends IS NOT NULL OR friends_z IS NOT NULL) << 5 AS fetched_fields FROM social_spider.qq_users_raw WHERE id > ? ORDER BY id LIMIT ?;";
+
+    /**
+     * Finds rows whose payloads are not all compressed yet.
+     */
+    private static final String FIND_UNCOMPRESSED_AFTER_SQL = "SELECT id, personal_info, personal_info_detail, message_board, recent_visitors, recent_visitors_detail, friends FROM social_spider.qq_users_raw WHERE id > ? AND (personal_info IS NOT NULL OR personal_info_detail IS NOT NULL OR message_board IS NOT NULL OR recent_visitors IS NOT NULL OR recent_visitors_detail IS NOT NULL OR friends IS NOT NULL) ORDER BY id LIMIT ?;";
+
+    /**
+     * Held shared while a UIN is claimed in seenUins and written or buffered, and exclusively while a snapshot is taken.
+     * A snapshot thus never holds a UIN which is neither in the database nor about to be written to it.
+     */
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+
+    /**
+     * File the seen UINs are saved to periodically, or null if they are not saved.
+     */
+    private File snapshotFile;
+
+    /**
+     * Saves seenUins to snapshotFile periodically.
+     */
+    private ScheduledExecutorService snapshotTimer;
+
+    /**
+     * Reads the next batch of users for cursors in background.
+     */
+    private final ExecutorService prefetchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "UserPrefetchThread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Whether inserts and updates are buffered and written in batches.
+     */
+    private volatile boolean writeBehind;
+
+    /**
+     * Guards bufferedInserts and bufferedUpdates. Writers wait on it for buffer space, and the write-behind thread for a full batch.
+     */
+    private final Object writeBufferMonitor = new Object();
+
+    /**
+     * Users waiting to be inserted, by UIN.
+     */
+    private Map<Long, QQUserRaw> bufferedInserts = new LinkedHashMap<Long, QQUserRaw>();
+
+    /**
+     * Users waiting to be updated, by UIN.
+     */
+    private Map<Long, BufferedUpdate> bufferedUpdates = new LinkedHashMap<Long, BufferedUpdate>();
+
+    /**
+     * Held while buffered writes are written, so that flushes never overtake each other.
+     */
+    private final Object flushLock = new Object();
+
+    private Thread writeBehindThread;
+
+    private volatile int batchSize;
+
+    private volatile long flushInterval;
+
+    private volatile int maxBufferedWrites;
+
+    /**
+     * Whether payloads are written compressed into the binary columns. See enablePayloadCompression().
+     */
+    private volatile boolean compressPayloads;
 
     /**
      * Create a storage of QQ users from a database connection.
+     * <p/>
+     * All existing UINs are loaded into memory first.
      *
      * @param dbConnection The database connection this storage will use.
      */
     public QQUserRawStorage(Connection dbConnection) {
-        this.dbConnection = dbConnection;
+        this(new ConnectionPool(dbConnection), null);
     }
 
-    @Override
-    public boolean insert(QQUserRaw newUser) {
+    /**
+     * Create a storage of QQ users from a pool of database connections.
+     * <p/>
+     * All existing UINs are loaded into memory first.
+     *
+     * @param connectionPool The database connections this storage will use.
+     */
+    public QQUserRawStorage(ConnectionPool connectionPool) {
+        this(connectionPool, null);
+    }
+
+    /**
+     * Create a storage of QQ users from a database connection, keeping a snapshot of the known UINs in a local file.
+     * <p/>
+     * Known UINs are loaded from the snapshot, then only users inserted after it was taken are read from the database. The snapshot is saved again every SNAPSHOT_INTERVAL_MINUTES minutes.
+     *
+     * @param connectionPool The database connections this storage will use.
+     * @param snapshotFile   File to keep the snapshot in, or null to always load from the database.
+     */
+    public QQUserRawStorage(ConnectionPool connectionPool, File snapshotFile) {
+        this(connectionPool, DEFAULT_TABLE_NAME, snapshotFile);
+    }
+
+    /**
+     * Create a storage of QQ users in a given table, which has the schema of qq_users_raw. Used to shard users across tables.
+     *
+     * @param connectionPool The database connections this storage will use.
+     * @param tableName      Qualified name of the table, e.g. social_spider.qq_users_raw_0.
+     * @param snapshotFile   File to keep the snapshot of known UINs in, or null to always load from the database.
+     */
+    public QQUserRawStorage(ConnectionPool connectionPool, String tableName, File snapshotFile) {
+        this.connectionPool = connectionPool;
+        this.tableName = tableName;
+        this.snapshotFile = snapshotFile;
+        loadSeenUins();
+        if (snapshotFile != null) {
+            snapshotTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "UinSnapshotThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            snapshotTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    saveSnapshot();
+                }
+            }, SNAPSHOT_INTERVAL_MINUTES, SNAPSHOT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Get a statement for the table of this storage.
+     *
+     * @param statement Statement written for DEFAULT_TABLE_NAME.
+     * @return The statement with the table name replaced, the same instance for the same statement.
+     */
+    private String sql(String statement) {
+        if (tableName.equals(DEFAULT_TABLE_NAME)) {
+            return statement;
+        }
+        String tableStatement = tableStatements.get(statement);
+        if (tableStatement == null) {
+            tableStatement = statement.replace(DEFAULT_TABLE_NAME, tableName);
+            tableStatements.put(statement, tableStatement);
+        }
+        return tableStatement;
+    }
+
+    /**
+     * Load every UIN in the database into seenUins, from the snapshot if there is one. Rows are streamed, so the result set is never held in memory.
+     */
+    private void loadSeenUins() {
+        long startTime = System.currentTimeMillis();
+        long lastId = loadSnapshot();
+        int snapshotUinCount = seenUins.size();
+        long snapshotTime = System.currentTimeMillis() - startTime;
+        ConnectionPool.PooledConnection connection = null;
         try {
-            PreparedStatement statement = dbConnection.prepareStatement("INSERT INTO social_spider.qq_users_raw (uin, personal_info, personal_info_detail, message_board, recent_visitors, recent_visitors_detail, friends) VALUES (?, ?, ?, ?, ?, ?, ?);");
-            statement.setLong(1, newUser.getUin());
-            statement.setString(2, newUser.getPersonalInfo());
-            statement.setString(3, newUser.getPersonalInfoDetail());
-            statement.setString(4, newUser.getMessageBoard());
-            statement.setString(5, newUser.getRecentVisitors());
-            statement.setString(6, newUser.getRecentVisitorsDetail());
-            statement.setString(7, newUser.getFriends());
-            boolean result = statement.executeUpdate() == 1;
+            connection = connectionPool.acquire();
+            PreparedStatement statement = connection.getConnection().prepareStatement(sql("SELECT id, uin FROM social_spider.qq_users_raw WHERE id > ?;"), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(Integer.MIN_VALUE); // Tells MySQL Connector/J to stream rows
+            statement.setLong(1, lastId);
+            ResultSet resultSet = statement.executeQuery();
+            long replayedRowCount = 0;
+            while (resultSet.next()) {
+                seenUins.add(resultSet.getLong(2));
+                ++replayedRowCount;
+            }
+            resultSet.close();
             statement.close();
-            return result;
+            seenUinsComplete = true;
+            System.out.println(String.format("Loaded %d known UINs in %d ms (%d from snapshot in %d ms, %d rows replayed from database).", seenUins.size(), System.currentTimeMillis() - startTime, snapshotUinCount, snapshotTime, replayedRowCount));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (connection != null) {
+                connection.onError(e);
+            }
+        } finally {
+            if (connection != null) {
+                connectionPool.release(connection);
+            }
+        }
+    }
+
+    /**
+     * Load seenUins from snapshotFile.
+     *
+     * @return id of the last user covered by the snapshot, or 0 if there is no usable snapshot.
+     */
+    private long loadSnapshot() {
+        if (snapshotFile == null || !snapshotFile.isFile()) {
+            return 0;
+        }
+        try {
+            FileChannel channel = new FileInputStream(snapshotFile).getChannel();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+                while (header.hasRemaining() && channel.read(header) != -1) {
+                }
+                header.flip();
+                if (header.remaining() < SNAPSHOT_HEADER_SIZE || header.getInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a UIN snapshot: " + snapshotFile);
+                }
+                long lastId = header.getLong();
+                seenUins.readFrom(channel);
+                return lastId;
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            seenUins.clear(); // Fall back to loading everything from the database
+            return 0;
+        }
+    }
+
+    /**
+     * Save seenUins to snapshotFile. Called periodically, and may also be called before the application exits.
+     * <p/>
+     * The snapshot is written to a temporary file first, so a crash never leaves a broken snapshot behind.
+     *
+     * @return true if successful, otherwise false.
+     */
+    public boolean saveSnapshot() {
+        if (snapshotFile == null || !seenUinsComplete) {
+            return false;
+        }
+        long startTime = System.currentTimeMillis();
+        snapshotLock.writeLock().lock();
+        try {
+            flush(); // Every UIN in seenUins is in the database from here on
+
+            // Users up to lastId are all in seenUins already, as UINs are added before they are inserted
+            long lastId;
+            ConnectionPool.PooledConnection connection = connectionPool.acquire();
+            try {
+                ResultSet resultSet = connection.prepareStatement(sql("SELECT MAX(id) FROM social_spider.qq_users_raw;")).executeQuery();
+                lastId = resultSet.next() ? resultSet.getLong(1) : 0;
+                resultSet.close();
+            } catch (SQLException e) {
+                connection.onError(e);
+                throw e;
+            } finally {
+                connectionPool.release(connection);
+            }
+
+            File temporaryFile = new File(snapshotFile.getPath() + ".tmp");
+            FileChannel channel = new FileOutputStream(temporaryFile).getChannel();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+                header.putInt(SNAPSHOT_MAGIC).putLong(lastId).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                seenUins.writeTo(channel);
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+            Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println(String.format("Saved %d known UINs up to id %d in %d ms.", seenUins.size(), lastId, System.currentTimeMillis() - startTime));
+            return true;
         } catch (SQLException e) {
             e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            snapshotLock.writeLock().unlock();
         }
         return false;
     }
 
+    /**
+     * Write buffered users, save a final snapshot and stop background threads. The storage can't be used afterwards.
+     * <p/>
+     * The connection pool is left open, as it may be shared with other storages.
+     */
+    public void close() {
+        if (snapshotTimer != null) {
+            snapshotTimer.shutdown();
+        }
+        try {
+            if (snapshotTimer != null) {
+                snapshotTimer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS); // A periodic snapshot may be being saved
+            }
+            disableWriteBehind();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        saveSnapshot();
+        prefetchExecutor.shutdownNow();
+    }
+
+    @Override
+    public boolean insert(QQUserRaw newUser) {
+        snapshotLock.readLock().lock();
+        try {
+            boolean claimed = UinBitmap.inRange(newUser.getUin()) && seenUins.add(newUser.getUin()); // Before inserting, so that a snapshot never misses it
+            newUser.takeDirtyFields(); // Every column is inserted
+            if (writeBehind) {
+                boolean result = bufferInsert(newUser);
+                if (!result && claimed) {
+                    seenUins.remove(newUser.getUin());
+                }
+                return result;
+            }
+            return executeInsert(newUser); // Forgets the user if it fails
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
     public boolean insert(long uin) {
         QQUserRaw newUser = new QQUserRaw(uin);
         return insert(newUser);
     }
 
-    public synchronized boolean insertIfNotExisted(long uin) {
-        return !exists(uin) && insert(uin);
+    /**
+     * Insert a user with only its UIN, unless the UIN is already in the storage.
+     * <p/>
+     * Known UINs are answered from memory. Only new UINs reach the database.
+     *
+     * @param uin UIN of the new user.
+     * @return true if the user has been inserted, otherwise false.
+     */
+    @Override
+    public boolean insertIfNotExisted(long uin) {
+        if (!UinBitmap.inRange(uin)) {
+            return false; // Can't be stored in an unsigned int column
+        }
+        snapshotLock.readLock().lock();
+        try {
+            if (!seenUins.add(uin)) {
+                return false;
+            }
+            if (!seenUinsComplete && exists(uin)) {
+                return false;
+            }
+            QQUserRaw newUser = new QQUserRaw(uin);
+            if (!writeBehind) {
+                return executeInsert(newUser); // Forgets the user if it fails
+            }
+            if (!bufferInsert(newUser)) {
+                seenUins.remove(uin); // Let it be tried again
+                return false;
+            }
+            return true;
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
     }
 
     @Override
     public boolean delete(QQUserRaw userToDelete) {
+        boolean bufferedInsertRemoved;
+        synchronized (writeBufferMonitor) {
+            bufferedInsertRemoved = bufferedInserts.remove(userToDelete.getUin()) != null;
+            bufferedUpdates.remove(userToDelete.getUin());
+        }
+        boolean result = bufferedInsertRemoved;
+        ConnectionPool.PooledConnection connection = null;
         try {
-            PreparedStatement statement = dbConnection.prepareStatement("DELETE FROM social_spider.qq_users_raw WHERE uin = ?;");
+            connection = connectionPool.acquire();
+            PreparedStatement statement = connection.prepareStatement(sql("DELETE FROM social_spider.qq_users_raw WHERE uin = ?;"));
             statement.setLong(1, userToDelete.getUin());
-            boolean result = statement.executeUpdate() == 1;
-            statement.close();
-            return result;
+            result |= statement.executeUpdate() == 1;
         } catch (SQLException e) {
             e.printStackTrace();
+            if (connection != null) {
+                connection.onError(e);
+            }
+        } finally {
+            if (connection != null) {
+                connectionPool.release(connection);
+            }
         }
-        return false;
+        if (result && UinBitmap.inRange(userToDelete.getUin())) {
+            seenUins.remove(userToDelete.getUin());
+        }
+        return result;
     }
 
     public boolean delete(long uin) {
@@ -78,41 +548,210 @@ public class QQUserRawStorage implements UserStorage<QQUserRaw> {
 
     @Override
     public QQUserRaw find(long offset) {
+        ConnectionPool.PooledConnection connection = null;
         try {
-            PreparedStatement statement = dbConnection.prepareStatement("SELECT * FROM social_spider.qq_users_raw WHERE id = ?");
+            connection = connectionPool.acquire();
+            PreparedStatement statement = connection.prepareStatement(sql("SELECT * FROM social_spider.qq_users_raw WHERE id = ?"));
             statement.setLong(1, offset + 1);
             ResultSet resultSet = statement.executeQuery();
             if (!resultSet.first()) {
+                resultSet.close();
                 return null;
             }
-            QQUserRaw user = new QQUserRaw(resultSet.getLong("uin"));
-            user.setPersonalInfo(resultSet.getString("personal_info"));
-            user.setPersonalInfoDetail(resultSet.getString("personal_info_detail"));
-            user.setMessageBoard(resultSet.getString("message_board"));
-            user.setRecentVisitors(resultSet.getString("recent_visitors"));
-            user.setRecentVisitorsDetail(resultSet.getString("recent_visitors_detail"));
-            user.setFriends(resultSet.getString("friends"));
-            statement.close();
+            QQUserRaw user = readUser(resultSet);
             resultSet.close();
             return user;
         } catch (SQLException e) {
             e.printStackTrace();
+            if (connection != null) {
+                connection.onError(e);
+            }
+        } finally {
+            if (connection != null) {
+                connectionPool.release(connection);
+            }
         }
         return null;
     }
 
+    /**
+     * Open a cursor over users in id order. Users are read CURSOR_BATCH_SIZE at a time by keyset pagination, and the next batch is prefetched while the current one is consumed.
+     * <p/>
+     * Users are read without their payloads. QQUserRaw.isFetched() tells which payloads have been fetched, and updating such a user only writes the payloads set on it.
+     *
+     * @param position id of the user to start after, or 0 to start from the first user.
+     * @return A cursor.
+     */
+    @Override
+    public UserCursor<QQUserRaw> openCursor(long position) {
+        return new KeysetCursor(position);
+    }
+
+    /**
+     * Read the crawl state of users with an id larger than a given one, in id order.
+     *
+     * @param lastId The id to start after.
+     * @param limit  The maximum number of users to read.
+     * @return The users, or an empty list if there is none or reading failed.
+     */
+    private List<Row> findAfter(long lastId, int limit) {
+        List<Row> rows = new ArrayList<Row>(limit);
+        ConnectionPool.PooledConnection connection = null;
+        try {
+            connection = connectionPool.acquire();
+            PreparedStatement statement = connection.prepareStatement(sql(compressPayloads ? FIND_CRAWL_STATE_AFTER_COMPRESSED_SQL : FIND_CRAWL_STATE_AFTER_SQL));
+            statement.setLong(1, lastId);
+            statement.setInt(2, limit);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                QQUserRaw user = new QQUserRaw(resultSet.getLong("uin"));
+                user.setFetchedFields(resultSet.getInt("fetched_fields"));
+                rows.add(new Row(resultSet.getLong("id"), user));
+            }
+            resultSet.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (connection != null) {
+                connection.onError(e);
+            }
+        } finally {
+            if (connection != null) {
+                connectionPool.release(connection);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Read a whole user. Compressed payloads are decompressed here, but only decoded into Strings when accessed.
+     *
+     * @param resultSet Result set at the row of the user.
+     * @return The user.
+     * @throws SQLException
+     */
+    private QQUserRaw readUser(ResultSet resultSet) throws SQLException {
+        QQUserRaw user = new QQUserRaw(resultSet.getLong("uin"));
+        user.setPersonalInfo(resultSet.getString("personal_info"));
+        user.setPersonalInfoDetail(resultSet.getString("personal_info_detail"));
+        user.setMessageBoard(resultSet.getString("message_board"));
+        user.setRecentVisitors(resultSet.getString("recent_visitors"));
+        user.setRecentVisitorsDetail(resultSet.getString("recent_visitors_detail"));
+        user.setFriends(resultSet.getString("friends"));
+        if (compressPayloads) {
+            for (int i = 0; i < PAYLOAD_COLUMNS.length; ++i) {
+                byte[] compressedPayload = resultSet.getBytes(PAYLOAD_COLUMNS[i] + COMPRESSED_SUFFIX);
+                if (compressedPayload != null && !user.isFetched(1 << i)) { // The text column wins while it is not migrated
+                    user.setPayloadBytes(1 << i, PayloadCodec.decodeBytes(compressedPayload));
+                }
+            }
+        }
+        user.takeDirtyFields(); // As read from the database
+        return user;
+    }
+
+    /**
+     * Write payloads compressed by PayloadCodec into binary columns from now on, and read them from there.
+     * <p/>
+     * The table needs a LONGBLOB column named after each payload column with a "_z" suffix, see README. Payloads still in text columns are read as before, and moved by migratePayloads().
+     */
+    public void enablePayloadCompression() {
+        compressPayloads = true;
+    }
+
+    /**
+     * Compress every payload still in a text column into its binary column. Enables payload compression first.
+     * <p/>
+     * Rows are walked in id order in batches, and each column is moved only if it hasn't been rewritten meanwhile, so this may run while crawling, and may be run again after being interrupted.
+     *
+     * @return Number of rows migrated.
+     */
+    public long migratePayloads() {
+        enablePayloadCompression();
+        long startTime = System.currentTimeMillis();
+        long lastId = 0;
+        long rowCount = 0;
+        long textBytes = 0;
+        long compressedBytes = 0;
+        ConnectionPool.PooledConnection connection = null;
+        try {
+            connection = connectionPool.acquire();
+            while (true) {
+                PreparedStatement statement = connection.prepareStatement(sql(FIND_UNCOMPRESSED_AFTER_SQL));
+                statement.setLong(1, lastId);
+                statement.setInt(2, CURSOR_BATCH_SIZE);
+                ResultSet resultSet = statement.executeQuery();
+                List<Long> ids = new ArrayList<Long>();
+                List<String[]> payloads = new ArrayList<String[]>();
+                while (resultSet.next()) {
+                    ids.add(resultSet.getLong("id"));
+                    String[] rowPayloads = new String[PAYLOAD_COLUMNS.length];
+                    for (int i = 0; i < PAYLOAD_COLUMNS.length; ++i) {
+                        rowPayloads[i] = resultSet.getString(PAYLOAD_COLUMNS[i]);
+                    }
+                    payloads.add(rowPayloads);
+                }
+                resultSet.close();
+                if (ids.isEmpty()) {
+                    break;
+                }
+                for (int row = 0; row < ids.size(); ++row) {
+                    for (int i = 0; i < PAYLOAD_COLUMNS.length; ++i) {
+                        String payload = payloads.get(row)[i];
+                        if (payload == null) {
+                            continue;
+                        }
+                        byte[] compressedPayload = PayloadCodec.encode(payload);
+                        PreparedStatement migrateStatement = connection.prepareStatement(sql(MIGRATE_SQL[i]));
+                        migrateStatement.setBytes(1, compressedPayload);
+                        migrateStatement.setLong(2, ids.get(row));
+                        migrateStatement.executeUpdate();
+                        textBytes += payload.length();
+                        compressedBytes += compressedPayload.length;
+                    }
+                }
+                rowCount += ids.size();
+                lastId = ids.get(ids.size() - 1);
+                System.out.println(String.format("Migrated %d rows up to id %d, %d chars compressed into %d bytes.", rowCount, lastId, textBytes, compressedBytes));
+            }
+            System.out.println(String.format("Payload migration finished in %d ms.", System.currentTimeMillis() - startTime));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            if (connection != null) {
+                connection.onError(e);
+            }
+        } finally {
+            if (connection != null) {
+                connectionPool.release(connection);
+            }
+        }
+        return rowCount;
+    }
+
     @Override
     public boolean exists(QQUserRaw user) {
+        synchronized (writeBufferMonitor) {
+            if (bufferedInserts.containsKey(user.getUin())) {
+                return true;
+            }
+        }
+        ConnectionPool.PooledConnection connection = null;
         try {
-            PreparedStatement statement = dbConnection.prepareStatement("SELECT uin FROM social_spider.qq_users_raw WHERE uin = ?;");
+            connection = connectionPool.acquire();
+            PreparedStatement statement = connection.prepareStatement(sql("SELECT uin FROM social_spider.qq_users_raw WHERE uin = ?;"));
             statement.setLong(1, user.getUin());
             ResultSet resultSet = statement.executeQuery();
             boolean result = resultSet.first();
-            statement.close();
             resultSet.close();
             return result;
         } catch (SQLException e) {
             e.printStackTrace();
+            if (connection != null) {
+                connection.onError(e);
+            }
+        } finally {
+            if (connection != null) {
+                connectionPool.release(connection);
+            }
         }
         return false;
     }
@@ -122,23 +761,520 @@ public class QQUserRawStorage implements UserStorage<QQUserRaw> {
         return exists(user);
     }
 
+    /**
+     * Write the payloads changed since the user was last written. Other columns are left as they are.
+     *
+     * @param user The user with updated information.
+     * @return true if successful or there is nothing to write, otherwise false.
+     */
     @Override
     public boolean update(QQUserRaw user) {
+        int fields = user.takeDirtyFields();
+        if (fields == 0) {
+            return true;
+        }
+        if (writeBehind) {
+            return bufferUpdate(user, fields);
+        }
+        if (!executeUpdate(user, fields)) {
+            user.markDirty(fields); // Written by the next update
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write all buffered inserts and updates to the database, and wait until they are written.
+     */
+    @Override
+    public void flush() {
+        synchronized (flushLock) {
+            Map<Long, QQUserRaw> inserts;
+            Map<Long, BufferedUpdate> updates;
+            synchronized (writeBufferMonitor) {
+                if (bufferedInserts.isEmpty() && bufferedUpdates.isEmpty()) {
+                    return;
+                }
+                inserts = bufferedInserts;
+                updates = bufferedUpdates;
+                bufferedInserts = new LinkedHashMap<Long, QQUserRaw>();
+                bufferedUpdates = new LinkedHashMap<Long, BufferedUpdate>();
+                writeBufferMonitor.notifyAll(); // Wake up writers waiting for buffer space
+            }
+            // Inserts go first, as buffered updates may target users inserted in the same flush
+            executeBatches(inserts.values(), 0);
+
+            // Updates of the same columns share a statement, so they are batched together
+            Map<Integer, List<QQUserRaw>> updatesByFields = new HashMap<Integer, List<QQUserRaw>>();
+            for (BufferedUpdate update : updates.values()) {
+                List<QQUserRaw> users = updatesByFields.get(update.fields);
+                if (users == null) {
+                    users = new ArrayList<QQUserRaw>();
+                    updatesByFields.put(update.fields, users);
+                }
+                users.add(update.user);
+            }
+            for (Map.Entry<Integer, List<QQUserRaw>> entry : updatesByFields.entrySet()) {
+                executeBatches(entry.getValue(), entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Buffer inserts and updates in memory and write them to the database in batches, instead of one statement per call.
+     * <p/>
+     * Repeated updates to the same user are coalesced into one. Buffered writes are flushed by a background thread once batchSize of them are buffered, or every flushInterval milliseconds. Writers block while maxBufferedWrites are buffered. Call flush() to write them out immediately, e.g. before pausing or stopping.
+     * <p/>
+     * Batches are much faster with rewriteBatchedStatements=true in the connection URL.
+     *
+     * @param batchSize         Number of buffered writes that triggers a flush, and the number of rows per batch.
+     * @param flushInterval     The longest time a write stays buffered, in milliseconds.
+     * @param maxBufferedWrites The maximum number of buffered writes.
+     */
+    public synchronized void enableWriteBehind(int batchSize, long flushInterval, int maxBufferedWrites) {
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.maxBufferedWrites = Math.max(batchSize, maxBufferedWrites);
+        writeBehind = true;
+        if (writeBehindThread == null) {
+            writeBehindThread = new Thread("WriteBehindThread") {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            synchronized (writeBufferMonitor) {
+                                long deadline = System.currentTimeMillis() + QQUserRawStorage.this.flushInterval;
+                                long remaining = QQUserRawStorage.this.flushInterval;
+                                while (getBufferedWriteCount() < QQUserRawStorage.this.batchSize && remaining > 0) {
+                                    writeBufferMonitor.wait(remaining);
+                                    remaining = deadline - System.currentTimeMillis();
+                                }
+                            }
+                            flush();
+                        }
+                    } catch (InterruptedException e) {
+                        flush();
+                    }
+                }
+            };
+            writeBehindThread.setDaemon(true);
+            writeBehindThread.start();
+        }
+    }
+
+    /**
+     * Write every following insert and update to the database immediately. Buffered writes are flushed first.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void disableWriteBehind() throws InterruptedException {
+        writeBehind = false;
+        if (writeBehindThread != null) {
+            writeBehindThread.interrupt();
+            writeBehindThread.join();
+            writeBehindThread = null;
+        }
+        flush();
+    }
+
+    /**
+     * Get the number of inserts and updates waiting to be written to the database.
+     *
+     * @return Buffered write number.
+     */
+    public int getBufferedWriteCount() {
+        synchronized (writeBufferMonitor) {
+            return bufferedInserts.size() + bufferedUpdates.size();
+        }
+    }
+
+    /**
+     * Buffer an insert. Blocks while the buffer is full.
+     *
+     * @param newUser The new user.
+     * @return true if it has been buffered, or false if the user is already waiting to be inserted.
+     */
+    private boolean bufferInsert(QQUserRaw newUser) {
+        synchronized (writeBufferMonitor) {
+            if (bufferedInserts.containsKey(newUser.getUin())) {
+                return false;
+            }
+            waitForBufferSpace();
+            bufferedInserts.put(newUser.getUin(), newUser);
+            onBuffered();
+            return true;
+        }
+    }
+
+    /**
+     * Buffer an update, coalescing it with a buffered insert or update of the same user. Blocks while the buffer is full.
+     * <p/>
+     * A buffered update of another object of the same user, with payloads the new one doesn't write, is written right away instead, as the new object may not hold those payloads.
+     *
+     * @param user   The user with updated information.
+     * @param fields Bits of the payloads to write.
+     * @return Always true, as failures are only known when flushed.
+     */
+    private boolean bufferUpdate(QQUserRaw user, int fields) {
+        BufferedUpdate supersededUpdate;
+        synchronized (writeBufferMonitor) {
+            if (bufferedInserts.containsKey(user.getUin())) { // Insert it with the updated information instead
+                bufferedInserts.put(user.getUin(), user);
+                return true;
+            }
+            BufferedUpdate bufferedUpdate = bufferedUpdates.get(user.getUin());
+            if (bufferedUpdate == null) {
+                waitForBufferSpace();
+                bufferedUpdates.put(user.getUin(), new BufferedUpdate(user, fields));
+                onBuffered();
+                return true;
+            }
+            if (bufferedUpdate.user == user || (bufferedUpdate.fields & ~fields) == 0) { // Write the columns of both updates at once, with the latest values
+                bufferedUpdate.user = user;
+                bufferedUpdate.fields |= fields;
+                return true;
+            }
+            supersededUpdate = bufferedUpdates.remove(user.getUin());
+        }
+        if (!executeWrite(supersededUpdate.user, supersededUpdate.fields)) { // Before the new update, which may overwrite some of its columns
+            supersededUpdate.user.markDirty(supersededUpdate.fields);
+        }
+        return bufferUpdate(user, fields);
+    }
+
+    /**
+     * Wait until the buffer is not full. Must be called with writeBufferMonitor held.
+     */
+    private void waitForBufferSpace() {
+        while (bufferedInserts.size() + bufferedUpdates.size() >= maxBufferedWrites) {
+            try {
+                writeBufferMonitor.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Exceed the bound rather than lose the write
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wake up the write-behind thread if a batch is ready. Must be called with writeBufferMonitor held.
+     */
+    private void onBuffered() {
+        if (bufferedInserts.size() + bufferedUpdates.size() >= batchSize) {
+            writeBufferMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Insert one user. A user that fails to be inserted is forgotten, so that it may be inserted again, unless its row already exists.
+     *
+     * @param newUser The user.
+     * @return true if the user has been inserted, otherwise false.
+     */
+    private boolean executeInsert(QQUserRaw newUser) {
         try {
-            PreparedStatement statement = dbConnection.prepareStatement("UPDATE social_spider.qq_users_raw SET personal_info = ?, personal_info_detail = ?, message_board = ?, recent_visitors = ?, recent_visitors_detail = ?, friends = ?  WHERE uin = ?;");
-            statement.setString(1, user.getPersonalInfo());
-            statement.setString(2, user.getPersonalInfoDetail());
-            statement.setString(3, user.getMessageBoard());
-            statement.setString(4, user.getRecentVisitors());
-            statement.setString(5, user.getRecentVisitorsDetail());
-            statement.setString(6, user.getFriends());
-            statement.setLong(7, user.getUin());
-            boolean result = statement.executeUpdate() == 1;
-            statement.close();
-            return  result;
+            if (writeRow(newUser, 0)) {
+                return true;
+            }
         } catch (SQLException e) {
+            if (isDuplicateKey(e)) {
+                return false; // Already stored, so it stays seen
+            }
             e.printStackTrace();
         }
+        if (UinBitmap.inRange(newUser.getUin())) {
+            seenUins.remove(newUser.getUin());
+        }
         return false;
     }
+
+    private boolean executeUpdate(QQUserRaw user, int fields) {
+        return executeWrite(user, fields);
+    }
+
+    /**
+     * Insert or update one user.
+     *
+     * @param user         The user.
+     * @param updateFields Bits of the payloads to update, or 0 to insert the user.
+     * @return true if one row is written, otherwise false.
+     */
+    private boolean executeWrite(QQUserRaw user, int updateFields) {
+        try {
+            return writeRow(user, updateFields);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Insert or update one user, throwing the failure so that the caller can tell why it failed.
+     *
+     * @param user         The user.
+     * @param updateFields Bits of the payloads to update, or 0 to insert the user.
+     * @return true if one row is written, otherwise false.
+     * @throws SQLException
+     */
+    private boolean writeRow(QQUserRaw user, int updateFields) throws SQLException {
+        ConnectionPool.PooledConnection connection = connectionPool.acquire();
+        try {
+            PreparedStatement statement = prepareWrite(connection, user, updateFields);
+            return statement.executeUpdate() == 1;
+        } catch (SQLException e) {
+            connection.onError(e);
+            throw e;
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    /**
+     * Check whether an insert failed because the row already exists.
+     *
+     * @param e The failure.
+     * @return true if it is a duplicate key, otherwise false.
+     */
+    private static boolean isDuplicateKey(SQLException e) {
+        return e instanceof SQLIntegrityConstraintViolationException || e.getErrorCode() == MYSQL_DUPLICATE_ENTRY;
+    }
+
+    /**
+     * Write users with JDBC batches of batchSize rows.
+     *
+     * @param users        The users.
+     * @param updateFields Bits of the payloads to update, or 0 to insert the users.
+     */
+    private void executeBatches(Collection<QQUserRaw> users, int updateFields) {
+        List<QQUserRaw> batch = new ArrayList<QQUserRaw>(batchSize);
+        for (QQUserRaw user : users) {
+            batch.add(user);
+            if (batch.size() == batchSize) {
+                executeBatch(batch, updateFields);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            executeBatch(batch, updateFields);
+        }
+    }
+
+    /**
+     * Execute one JDBC batch. If the batch fails, rows it didn't write are written one by one, so that one bad row doesn't fail the others. A batch rewritten into a multi-row statement fails as a whole.
+     * <p/>
+     * Users that fail to be inserted are forgotten, so that they may be inserted again, unless their rows already exist. Users that fail to be updated keep their payloads dirty.
+     *
+     * @param users        Users in the batch.
+     * @param updateFields Bits of the payloads to update, or 0 to insert the users.
+     */
+    private void executeBatch(List<QQUserRaw> users, int updateFields) {
+        ConnectionPool.PooledConnection connection;
+        try {
+            connection = connectionPool.acquire();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            connection = null;
+        }
+        int[] updateCounts = new int[0];
+        if (connection != null) {
+            try {
+                PreparedStatement statement = null;
+                try {
+                    for (QQUserRaw user : users) {
+                        statement = prepareWrite(connection, user, updateFields);
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    return;
+                } finally {
+                    if (statement != null) {
+                        statement.clearBatch();
+                    }
+                }
+            } catch (BatchUpdateException e) {
+                e.printStackTrace();
+                connection.onError(e);
+                updateCounts = e.getUpdateCounts();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                connection.onError(e);
+            } finally {
+                connectionPool.release(connection);
+            }
+        }
+        for (int i = 0; i < users.size(); ++i) {
+            QQUserRaw user = users.get(i);
+            if (updateCounts != null && i < updateCounts.length && updateCounts[i] != Statement.EXECUTE_FAILED) {
+                continue;
+            }
+            if (updateFields == 0) {
+                executeInsert(user); // Forgets the user if it fails
+            } else if (!executeWrite(user, updateFields)) {
+                user.markDirty(updateFields);
+            }
+        }
+    }
+
+    /**
+     * Get the cached statement that inserts or updates a user, with its parameters set.
+     *
+     * @param connection   Connection to use.
+     * @param user         The user.
+     * @param updateFields Bits of the payloads to update, or 0 to insert the user.
+     * @return The statement, ready to execute or add to a batch.
+     * @throws SQLException
+     */
+    private PreparedStatement prepareWrite(ConnectionPool.PooledConnection connection, QQUserRaw user, int updateFields) throws SQLException {
+        boolean compressPayloads = this.compressPayloads;
+        boolean insert = updateFields == 0;
+        PreparedStatement statement;
+        int parameterIndex = 1;
+        if (insert) {
+            statement = connection.prepareStatement(sql(compressPayloads ? INSERT_COMPRESSED_SQL : INSERT_SQL));
+            statement.setLong(parameterIndex++, user.getUin());
+            updateFields = (1 << PAYLOAD_COLUMNS.length) - 1; // Every payload
+        } else {
+            statement = connection.prepareStatement(sql(compressPayloads ? UPDATE_COMPRESSED_SQL[updateFields] : UPDATE_SQL[updateFields]));
+        }
+        for (int i = 0; i < PAYLOAD_COLUMNS.length; ++i) {
+            if ((updateFields & (1 << i)) != 0) {
+                if (compressPayloads) {
+                    statement.setBytes(parameterIndex++, PayloadCodec.encode(user.getPayloadBytes(1 << i)));
+                } else {
+                    statement.setString(parameterIndex++, user.getPayload(1 << i));
+                }
+            }
+        }
+        if (!insert) {
+            statement.setLong(parameterIndex, user.getUin());
+        }
+        return statement;
+    }
+
+    /**
+     * An update waiting in the write buffer.
+     */
+    private static class BufferedUpdate {
+
+        private QQUserRaw user;
+
+        /**
+         * Bits of the payloads to write.
+         */
+        private int fields;
+
+        public BufferedUpdate(QQUserRaw user, int fields) {
+            this.user = user;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * A user with its id.
+     */
+    private static class Row {
+
+        private final long id;
+        private final QQUserRaw user;
+
+        public Row(long id, QQUserRaw user) {
+            this.id = id;
+            this.user = user;
+        }
+    }
+
+    /**
+     * Walks users by "id > lastId ORDER BY id LIMIT n", so holes in ids are simply skipped. Used by one thread at a time.
+     */
+    private class KeysetCursor implements UserCursor<QQUserRaw> {
+
+        /**
+         * Users read but not yet returned.
+         */
+        private final Queue<Row> rows = new ArrayDeque<Row>();
+
+        /**
+         * id of the last user read from the database.
+         */
+        private long lastReadId;
+
+        /**
+         * id of the last user returned by next().
+         */
+        private long position;
+
+        /**
+         * The next batch being read in background, or null.
+         */
+        private Future<List<Row>> prefetch;
+
+        public KeysetCursor(long position) {
+            this.position = position;
+            lastReadId = position;
+        }
+
+        @Override
+        public QQUserRaw next() {
+            if (rows.isEmpty()) {
+                List<Row> batch = takePrefetch();
+                if (batch == null) {
+                    batch = findAfter(lastReadId, CURSOR_BATCH_SIZE);
+                }
+                if (batch.isEmpty()) { // Try again on the next call, as users may be inserted meanwhile
+                    return null;
+                }
+                rows.addAll(batch);
+                lastReadId = batch.get(batch.size() - 1).id;
+                if (batch.size() == CURSOR_BATCH_SIZE) { // More users are likely to follow
+                    final long nextLastId = lastReadId;
+                    prefetch = prefetchExecutor.submit(new Callable<List<Row>>() {
+                        @Override
+                        public List<Row> call() {
+                            return findAfter(nextLastId, CURSOR_BATCH_SIZE);
+                        }
+                    });
+                }
+            }
+            Row row = rows.poll();
+            position = row.id;
+            return row.user;
+        }
+
+        @Override
+        public long getPosition() {
+            return position;
+        }
+
+        @Override
+        public void close() {
+            if (prefetch != null) {
+                prefetch.cancel(false);
+                prefetch = null;
+            }
+            rows.clear();
+        }
+
+        /**
+         * Wait for the prefetched batch.
+         *
+         * @return The batch, or null if there is none.
+         */
+        private List<Row> takePrefetch() {
+            Future<List<Row>> prefetch = this.prefetch;
+            this.prefetch = null;
+            if (prefetch == null) {
+                return null;
+            }
+            try {
+                return prefetch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            } catch (CancellationException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
 }
@@ -0,0 +1,19 @@
+package core.storage;
+
+import core.model.QQUserRaw;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.storage
+ * Created by Stackia <jsq2627@gmail.com> on 12/21/14.
+ */
+public interface QQUserStorage extends UserStorage<QQUserRaw> {
+
+    /**
+     * Insert a user with only its UIN, unless the UIN is already in the storage.
+     *
+     * @param uin UIN of the new user.
+     * @return true if the user has been inserted, otherwise false.
+     */
+    public boolean insertIfNotExisted(long uin);
+}
@@ -0,0 +1,174 @@
+package core.storage;
+
+import core.model.QQUserRaw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.storage
+ * Created by Stackia <jsq2627@gmail.com> on 12/21/14.
+ * <p/>
+ * Spreads QQ users across several storages by a hash of their UIN, so that writes don't all wait for the lock of one table.
+ * <p/>
+ * A user always goes to the same shard as long as the shards are the same and in the same order.
+ */
+public class ShardedQQUserStorage implements QQUserStorage {
+
+    private final List<QQUserStorage> shards;
+
+    /**
+     * Create a storage over some shards.
+     *
+     * @param shards Storages to spread users across, e.g. QQUserRawStorage of tables qq_users_raw_0 to qq_users_raw_7.
+     */
+    public ShardedQQUserStorage(List<? extends QQUserStorage> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shard");
+        }
+        this.shards = new ArrayList<QQUserStorage>(shards);
+    }
+
+    /**
+     * Get the shard of a UIN. UINs are close to sequential, so they are mixed first.
+     *
+     * @param uin UIN of a user.
+     * @return The storage the user belongs to.
+     */
+    private QQUserStorage shardOf(long uin) {
+        long hash = uin * 0x9E3779B97F4A7C15L;
+        return shards.get((int) ((hash >>> 32) % shards.size()));
+    }
+
+    @Override
+    public boolean insert(QQUserRaw newUser) {
+        return shardOf(newUser.getUin()).insert(newUser);
+    }
+
+    @Override
+    public boolean insertIfNotExisted(long uin) {
+        return shardOf(uin).insertIfNotExisted(uin);
+    }
+
+    @Override
+    public boolean delete(QQUserRaw userToDelete) {
+        return shardOf(userToDelete.getUin()).delete(userToDelete);
+    }
+
+    /**
+     * Find a user by a merged position, see openCursor(): the shard at offset % shardCount is asked for offset / shardCount, with the meaning its own find() gives to it.
+     *
+     * @param offset Merged position of the user.
+     * @return The user, or null if there is no user at that position.
+     */
+    @Override
+    public QQUserRaw find(long offset) {
+        return shards.get((int) (offset % shards.size())).find(offset / shards.size());
+    }
+
+    /**
+     * Open a cursor that takes users from the cursors of all shards in turn.
+     * <p/>
+     * A position combines a shard and a position in that shard: localPosition * shardCount + shardIndex. The position of the cursor is the lowest such value over all shards, so it is a lower bound: every shard i is at a local position with localPosition * shardCount + i at least the merged position. A cursor opened there starts each shard at the lowest local position meeting that bound, so it may return some users again, but misses none.
+     *
+     * @param position Position returned by UserCursor.getPosition(), or 0 to start from the first user.
+     * @return A cursor.
+     */
+    @Override
+    public UserCursor<QQUserRaw> openCursor(long position) {
+        return new MergedCursor(position);
+    }
+
+    @Override
+    public boolean exists(QQUserRaw user) {
+        return shardOf(user.getUin()).exists(user);
+    }
+
+    @Override
+    public boolean update(QQUserRaw user) {
+        return shardOf(user.getUin()).update(user);
+    }
+
+    @Override
+    public void flush() {
+        for (QQUserStorage shard : shards) {
+            shard.flush();
+        }
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Takes users from the cursors of the shards in turn.
+     * <p/>
+     * A shard which has run out of users is skipped until all of them have, as asking its cursor again may cost a query every time. Users added to it meanwhile are returned after that.
+     */
+    private class MergedCursor implements UserCursor<QQUserRaw> {
+
+        private final List<UserCursor<QQUserRaw>> cursors = new ArrayList<UserCursor<QQUserRaw>>();
+
+        /**
+         * Shards whose cursor has returned null since all shards were last asked again.
+         */
+        private final boolean[] exhausted;
+
+        private int exhaustedCount;
+
+        /**
+         * Index of the shard to take the next user from.
+         */
+        private int nextShard;
+
+        public MergedCursor(long position) {
+            int shardCount = shards.size();
+            for (int i = 0; i < shardCount; ++i) {
+                // The lowest local position of shard i whose merged position is not below position
+                long localPosition = position > i ? (position - i + shardCount - 1) / shardCount : 0;
+                cursors.add(shards.get(i).openCursor(localPosition));
+            }
+            exhausted = new boolean[shardCount];
+        }
+
+        @Override
+        public QQUserRaw next() {
+            if (exhaustedCount == cursors.size()) { // Look for users added to any shard since
+                Arrays.fill(exhausted, false);
+                exhaustedCount = 0;
+            }
+            for (int i = 0; i < cursors.size(); ++i) {
+                int shard = nextShard;
+                nextShard = (nextShard + 1) % cursors.size();
+                if (exhausted[shard]) {
+                    continue;
+                }
+                QQUserRaw user = cursors.get(shard).next();
+                if (user != null) {
+                    return user;
+                }
+                exhausted[shard] = true;
+                ++exhaustedCount;
+            }
+            return null;
+        }
+
+        @Override
+        public long getPosition() {
+            long position = Long.MAX_VALUE;
+            for (int i = 0; i < cursors.size(); ++i) {
+                position = Math.min(position, cursors.get(i).getPosition() * cursors.size() + i);
+            }
+            return position;
+        }
+
+        @Override
+        public void close() {
+            for (UserCursor<QQUserRaw> cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package core.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.storage
+ * Created by Stackia <jsq2627@gmail.com> on 12/17/14.
+ */
+class UinBitmap {
+
+    /**
+     * Each page covers 2^16 UINs with 8 KiB of bits.
+     */
+    private static final int PAGE_SHIFT = 16;
+
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    /**
+     * UINs are unsigned 32-bit integers, so 2^16 pages cover all of them.
+     */
+    private static final int PAGE_NUM = 1 << (32 - PAGE_SHIFT);
+
+    /**
+     * Number of longs in a page.
+     */
+    private static final int PAGE_WORDS = 1 << (PAGE_SHIFT - 6);
+
+    /**
+     * Pages of bits, allocated the first time a UIN in their range is added.
+     */
+    private final AtomicReferenceArray<AtomicLongArray> pages = new AtomicReferenceArray<AtomicLongArray>(PAGE_NUM);
+
+    /**
+     * Number of UINs in the set.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Add a UIN to the set. Safe to call from any thread.
+     *
+     * @param uin UIN to add, an unsigned 32-bit integer.
+     * @return true if it was not in the set before, otherwise false.
+     */
+    public boolean add(long uin) {
+        checkRange(uin);
+        AtomicLongArray page = pages.get(pageIndex(uin));
+        if (page == null) {
+            AtomicLongArray newPage = new AtomicLongArray(PAGE_WORDS);
+            page = pages.compareAndSet(pageIndex(uin), null, newPage) ? newPage : pages.get(pageIndex(uin));
+        }
+        int word = wordIndex(uin);
+        long bit = 1L << uin;
+        while (true) {
+            long bits = page.get(word);
+            if ((bits & bit) != 0) {
+                return false;
+            }
+            if (page.compareAndSet(word, bits, bits | bit)) {
+                size.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Check if a UIN is in the set.
+     *
+     * @param uin UIN to check.
+     * @return true if it is in the set, otherwise false.
+     */
+    public boolean contains(long uin) {
+        checkRange(uin);
+        AtomicLongArray page = pages.get(pageIndex(uin));
+        return page != null && (page.get(wordIndex(uin)) & (1L << uin)) != 0;
+    }
+
+    /**
+     * Remove a UIN from the set.
+     *
+     * @param uin UIN to remove.
+     * @return true if it was in the set, otherwise false.
+     */
+    public boolean remove(long uin) {
+        checkRange(uin);
+        AtomicLongArray page = pages.get(pageIndex(uin));
+        if (page == null) {
+            return false;
+        }
+        int word = wordIndex(uin);
+        long bit = 1L << uin;
+        while (true) {
+            long bits = page.get(word);
+            if ((bits & bit) == 0) {
+                return false;
+            }
+            if (page.compareAndSet(word, bits, bits & ~bit)) {
+                size.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Remove all UINs from the set.
+     */
+    public void clear() {
+        for (int i = 0; i < PAGE_NUM; ++i) {
+            pages.set(i, null);
+        }
+        size.set(0);
+    }
+
+    /**
+     * Write the set to a channel: the number of pages, then each allocated page as its index followed by its bits.
+     * <p/>
+     * UINs added concurrently may or may not be written.
+     *
+     * @param channel Channel to write to.
+     * @throws IOException
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        AtomicLongArray[] allocatedPages = new AtomicLongArray[PAGE_NUM]; // Pages allocated meanwhile are left out
+        int pageCount = 0;
+        for (int i = 0; i < PAGE_NUM; ++i) {
+            allocatedPages[i] = pages.get(i);
+            if (allocatedPages[i] != null) {
+                ++pageCount;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 + PAGE_WORDS * 8);
+        buffer.putInt(pageCount).flip();
+        writeFully(channel, buffer);
+        for (int i = 0; i < PAGE_NUM; ++i) {
+            AtomicLongArray page = allocatedPages[i];
+            if (page == null) {
+                continue;
+            }
+            buffer.clear();
+            buffer.putInt(i);
+            for (int j = 0; j < PAGE_WORDS; ++j) {
+                buffer.putLong(page.get(j));
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+        }
+    }
+
+    /**
+     * Read a set written by writeTo() into this set, which must be empty.
+     *
+     * @param channel Channel to read from.
+     * @throws IOException If the data is truncated or malformed.
+     */
+    public void readFrom(ReadableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 + PAGE_WORDS * 8);
+        buffer.limit(4);
+        readFully(channel, buffer);
+        int pageCount = buffer.getInt(0);
+        if (pageCount < 0 || pageCount > PAGE_NUM) {
+            throw new IOException("Malformed UIN set: " + pageCount + " pages");
+        }
+        long[] words = new long[PAGE_WORDS];
+        for (int i = 0; i < pageCount; ++i) {
+            buffer.clear();
+            readFully(channel, buffer);
+            buffer.flip();
+            int pageIndex = buffer.getInt();
+            if (pageIndex < 0 || pageIndex >= PAGE_NUM) {
+                throw new IOException("Malformed UIN set: page " + pageIndex);
+            }
+            buffer.asLongBuffer().get(words);
+            int bitCount = 0;
+            for (long word : words) {
+                bitCount += Long.bitCount(word);
+            }
+            pages.set(pageIndex, new AtomicLongArray(words));
+            size.addAndGet(bitCount);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException("Truncated UIN set");
+            }
+        }
+    }
+
+    /**
+     * Check if a number can be stored in the set.
+     *
+     * @param uin Number to check.
+     * @return true if it is an unsigned 32-bit integer, otherwise false.
+     */
+    public static boolean inRange(long uin) {
+        return uin >= 0 && uin <= 0xFFFFFFFFL;
+    }
+
+    private static int pageIndex(long uin) {
+        return (int) (uin >>> PAGE_SHIFT);
+    }
+
+    private static int wordIndex(long uin) {
+        return ((int) uin & PAGE_MASK) >>> 6;
+    }
+
+    private static void checkRange(long uin) {
+        if (!inRange(uin)) {
+            throw new IllegalArgumentException("UIN out of range: " + uin);
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package core.storage;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.storage
+ * Created by Stackia <jsq2627@gmail.com> on 12/24/14.
+ * <p/>
+ * UINs waiting to be crawled, in priority classes. A UIN is taken from the highest class which isn't empty, i.e. the lowest number, and in the order it was offered within its class.
+ * <p/>
+ * Every class keeps a bounded head of UINs in memory. UINs beyond it are spilled to memory-mapped segment files in a local directory and read back in bulk once the head runs out, so that the heap stays small however long the frontier grows, and taking a UIN never queries the database.
+ * <p/>
+ * UINs are unsigned 32-bit integers, and are kept as 4-byte ints both in memory and in segment files.
+ * <p/>
+ * The frontier doesn't survive a restart. Its files are deleted when opened and closed, since the users it held are still in the user storage.
+ */
+public class UinFrontier {
+
+    /**
+     * UINs in a segment file, 4 MB.
+     */
+    private static final int SEGMENT_CAPACITY = 1 << 20;
+
+    private static final String SEGMENT_SUFFIX = ".frontier";
+
+    private final File directory;
+
+    private final PriorityClass[] classes;
+
+    /**
+     * Number of segments created so far, used to name them.
+     */
+    private int segmentSeq;
+
+    private long size;
+
+    /**
+     * Number of UINs that have been written to segment files.
+     */
+    private long spilledCount;
+
+    /**
+     * UINs offered since the frontier was opened, whether or not they have been taken since.
+     */
+    private final UinBitmap offeredUins = new UinBitmap();
+
+    /**
+     * Create an empty frontier.
+     *
+     * @param directory     Directory for segment files. Created if needed. Segment files left in it are deleted.
+     * @param priorityCount Number of priority classes. Class 0 is taken first.
+     * @param headCapacity  Number of UINs kept in memory by each class.
+     * @throws IOException If the directory can't be used.
+     */
+    public UinFrontier(File directory, int priorityCount, int headCapacity) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create frontier directory " + directory);
+        }
+        this.directory = directory;
+        deleteSegmentFiles();
+        classes = new PriorityClass[priorityCount];
+        for (int i = 0; i < priorityCount; ++i) {
+            classes[i] = new PriorityClass(i, headCapacity);
+        }
+    }
+
+    /**
+     * Add a UIN to the end of a priority class.
+     *
+     * @param uin      The UIN.
+     * @param priority Priority class. Values beyond the lowest class go to the lowest class.
+     * @return true if successful, or false if the UIN isn't an unsigned 32-bit integer, or it had to be spilled and the segment file couldn't be written.
+     */
+    public synchronized boolean offer(long uin, int priority) {
+        if (!UinBitmap.inRange(uin)) {
+            return false;
+        }
+        PriorityClass priorityClass = classes[Math.max(0, Math.min(priority, classes.length - 1))];
+        try {
+            priorityClass.offer(uin);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        ++size;
+        offeredUins.add(uin);
+        return true;
+    }
+
+    /**
+     * Check if a UIN has been offered since the frontier was opened, so that whoever walks users in another way can skip it.
+     *
+     * @param uin The UIN.
+     * @return true if offered, even if it has been taken since, otherwise false. UINs of a segment file which couldn't be read back are no longer reported, so that they are crawled in the other way.
+     */
+    public boolean hasOffered(long uin) {
+        return UinBitmap.inRange(uin) && offeredUins.contains(uin);
+    }
+
+    /**
+     * Take the first UIN of the highest priority class which isn't empty.
+     *
+     * @return The UIN, or -1 if the frontier is empty.
+     */
+    public synchronized long poll() {
+        for (int i = 0; i < classes.length && size > 0; ++i) {
+            long uin = poll(i);
+            if (uin != -1) {
+                return uin;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Take the first UIN of a priority class.
+     *
+     * @param priority Priority class.
+     * @return The UIN, or -1 if the class is empty.
+     */
+    public synchronized long poll(int priority) {
+        long uin = classes[priority].poll();
+        if (uin != -1) {
+            --size;
+        }
+        return uin;
+    }
+
+    public int getPriorityCount() {
+        return classes.length;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Get the number of UINs in a priority class.
+     *
+     * @param priority Priority class.
+     * @return UIN number.
+     */
+    public synchronized long size(int priority) {
+        return classes[priority].size;
+    }
+
+    /**
+     * Get the number of UINs that have been spilled to segment files, including those taken since.
+     *
+     * @return Spilled UIN number.
+     */
+    public synchronized long getSpilledCount() {
+        return spilledCount;
+    }
+
+    /**
+     * Get the number of segment files in use.
+     *
+     * @return Segment number.
+     */
+    public synchronized int getSegmentCount() {
+        int segmentCount = 0;
+        for (PriorityClass priorityClass : classes) {
+            segmentCount += priorityClass.segments.size();
+        }
+        return segmentCount;
+    }
+
+    /**
+     * Drop every UIN, forget those offered, and delete the segment files.
+     */
+    public synchronized void close() {
+        for (PriorityClass priorityClass : classes) {
+            Segment segment;
+            while ((segment = priorityClass.segments.poll()) != null) {
+                segment.delete();
+            }
+            priorityClass.headCount = 0;
+            priorityClass.size = 0;
+        }
+        size = 0;
+        offeredUins.clear();
+    }
+
+    private void deleteSegmentFiles() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    System.out.println("Failed to delete frontier segment " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * UINs of one priority class: the head in memory, followed by the segments in the order they were written.
+     * <p/>
+     * A UIN goes to the head only while no segment is left, so that the head is always older than the segments.
+     */
+    private class PriorityClass {
+
+        private final int priority;
+
+        /**
+         * A ring of the first UINs of the class.
+         */
+        private final int[] head;
+
+        private int headStart;
+
+        private int headCount;
+
+        /**
+         * Oldest first. Only the first one is read from, and only the last one is written to.
+         */
+        private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+        private long size;
+
+        public PriorityClass(int priority, int headCapacity) {
+            this.priority = priority;
+            head = new int[headCapacity];
+        }
+
+        public void offer(long uin) throws IOException {
+            if (segments.isEmpty() && headCount < head.length) {
+                head[(headStart + headCount) % head.length] = (int) uin;
+                ++headCount;
+            } else {
+                Segment segment = segments.peekLast();
+                if (segment == null || segment.writeIndex == SEGMENT_CAPACITY) {
+                    if (segment != null && segment != segments.peekFirst()) {
+                        segment.unmap(); // Mapped again once it is read
+                    }
+                    segment = new Segment(new File(directory, String.format("%d-%08d%s", priority, segmentSeq++, SEGMENT_SUFFIX)));
+                    segments.addLast(segment);
+                }
+                segment.write(uin);
+                ++spilledCount;
+            }
+            ++size;
+        }
+
+        public long poll() {
+            if (headCount == 0) {
+                fillHead();
+                if (headCount == 0) {
+                    return -1;
+                }
+            }
+            long uin = head[headStart] & 0xFFFFFFFFL;
+            headStart = (headStart + 1) % head.length;
+            --headCount;
+            --size;
+            return uin;
+        }
+
+        /**
+         * Move UINs from the first segments to the empty head, deleting segments which have been read through.
+         */
+        private void fillHead() {
+            headStart = 0;
+            while (headCount < head.length && !segments.isEmpty()) {
+                Segment segment = segments.peekFirst();
+                try {
+                    headCount += segment.read(head, headCount, head.length - headCount);
+                } catch (IOException e) { // Its UINs are lost to the frontier, but not to the user storage
+                    e.printStackTrace();
+                    int lostCount = segment.writeIndex - segment.readIndex;
+                    size -= lostCount;
+                    UinFrontier.this.size -= lostCount;
+                    segment.readIndex = segment.writeIndex;
+                    // Which UINs are lost is unknown, so none may be skipped by whoever walks the user storage
+                    offeredUins.clear();
+                    System.out.println("Failed to read frontier segment " + segment.file + ". UINs offered so far are left to the user storage.");
+                }
+                if (segment.readIndex == segment.writeIndex) {
+                    segments.pollFirst();
+                    segment.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * A file of UINs as 4-byte ints, written and read through a mapping of the whole file while it is in use.
+     */
+    private static class Segment {
+
+        private final File file;
+
+        private MappedByteBuffer buffer;
+
+        private int writeIndex;
+
+        private int readIndex;
+
+        public Segment(File file) throws IOException {
+            this.file = file;
+            map();
+        }
+
+        private void map() throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) SEGMENT_CAPACITY * 4);
+            } finally {
+                randomAccessFile.close(); // The mapping stays valid
+            }
+        }
+
+        /**
+         * Drop the mapping. Pages are released once the buffer is collected.
+         */
+        public void unmap() {
+            buffer = null;
+        }
+
+        public void write(long uin) {
+            buffer.putInt(writeIndex << 2, (int) uin);
+            ++writeIndex;
+        }
+
+        /**
+         * Read UINs from where the last read stopped.
+         *
+         * @return Number of UINs read.
+         */
+        public int read(int[] uins, int offset, int maxCount) throws IOException {
+            if (buffer == null) {
+                map();
+            }
+            int count = Math.min(maxCount, writeIndex - readIndex);
+            IntBuffer intBuffer = buffer.asIntBuffer();
+            intBuffer.position(readIndex);
+            intBuffer.get(uins, offset, count);
+            readIndex += count;
+            return count;
+        }
+
+        public void delete() {
+            buffer = null;
+            if (!file.delete()) {
+                System.out.println("Failed to delete frontier segment " + file);
+            }
+        }
+    }
+}
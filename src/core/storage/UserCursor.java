@@ -0,0 +1,30 @@
+package core.storage;
+
+/**
+ * Project: SocialCrawler
+ * Package: core.storage
+ * Created by Stackia <jsq2627@gmail.com> on 12/19/14.
+ */
+public interface UserCursor<T> {
+
+    /**
+     * Get the next user in storage order.
+     * <p/>
+     * Returning null doesn't end the cursor. Users added to the storage later will still be returned by following calls.
+     *
+     * @return The next user, or null if there is no more user for now.
+     */
+    public T next();
+
+    /**
+     * Get the position of the last user returned by next(). A cursor opened at this position continues right after that user.
+     *
+     * @return Current position.
+     */
+    public long getPosition();
+
+    /**
+     * Release resources held by the cursor, e.g. a batch being prefetched.
+     */
+    public void close();
+}
@@ -33,6 +33,16 @@ public interface UserStorage<T> {
      */
     public T find(long offset);
 
+    /**
+     * Open a cursor that walks users in storage order, starting after a position.
+     * <p/>
+     * Unlike find(), a cursor reads users in batches and doesn't stall on positions left empty by delete().
+     *
+     * @param position Position returned by UserCursor.getPosition(), or 0 to start from the first user.
+     * @return A cursor.
+     */
+    public UserCursor<T> openCursor(long position);
+
     /**
      * Check if a user exists in the storage.
      *
@@ -52,4 +62,11 @@ public interface UserStorage<T> {
      * @return true if successful, otherwise false.
      */
     public boolean update(T user);
+
+    /**
+     * Write changes buffered by the storage durably, and wait until they are written.
+     * <p/>
+     * Storages which write every change immediately do nothing here.
+     */
+    public void flush();
 }
@@ -2,11 +2,14 @@ package core;
 
 import core.crawler.FetcherPool;
 import core.crawler.QQSpaceCrawler;
+import core.storage.ConnectionPool;
+import core.storage.QQUserRawLogStorage;
 import core.storage.QQUserRawStorage;
+import core.storage.QQUserStorage;
+import core.storage.UinFrontier;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Project: SocialCrawler
@@ -14,18 +17,47 @@ import java.sql.SQLException;
  * Created by Stackia <jsq2627@gmail.com> on 11/20/14.
  */
 public class test {
-    public static void main(String[] args) throws SQLException, InterruptedException {
+    public static void main(String[] args) throws InterruptedException, IOException {
         long uin = 1481455339;
         String skey = "@0LnGbfY0J";
-        if (args.length == 2) {
+        if (args.length >= 2) {
             uin = Long.parseLong(args[0]);
             skey = args[1];
         }
 
-        Connection dbConnection = DriverManager.getConnection("jdbc:mysql://localhost:3306/", "root", "8242627");
         FetcherPool fetcherPool = new FetcherPool(40);
-        QQUserRawStorage qqUserRawStorage = new QQUserRawStorage(dbConnection);
-        QQSpaceCrawler qqSpaceCrawler = new QQSpaceCrawler(fetcherPool,  qqUserRawStorage, uin, skey);
+        QQUserStorage userStorage;
+        if (args.length == 3) { // Crawl into segment files in a local directory instead of MySQL
+            final QQUserRawLogStorage qqUserRawLogStorage = new QQUserRawLogStorage(new File(args[2]));
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    qqUserRawLogStorage.close();
+                }
+            });
+            userStorage = qqUserRawLogStorage;
+        } else {
+            final ConnectionPool connectionPool = new ConnectionPool("jdbc:mysql://localhost:3306/?rewriteBatchedStatements=true", "root", "8242627", 8);
+            final QQUserRawStorage qqUserRawStorage = new QQUserRawStorage(connectionPool, new File("qq_users_raw.uins"));
+            qqUserRawStorage.enableWriteBehind(500, 1000, 20000);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    qqUserRawStorage.close();
+                    connectionPool.close();
+                }
+            });
+            userStorage = qqUserRawStorage;
+        }
+        QQSpaceCrawler qqSpaceCrawler = new QQSpaceCrawler(fetcherPool, userStorage, uin, skey);
+        final UinFrontier frontier = new UinFrontier(new File("qq_users_frontier"), 4, 100000);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                frontier.close();
+            }
+        });
+        qqSpaceCrawler.setFrontier(frontier);
         qqSpaceCrawler.start();
         Thread.sleep(Integer.MAX_VALUE);
     }